@@ -23,12 +23,17 @@
  */
 package com.hkkt.CentralLegitimizationAgency;
 
+import com.hkkt.communication.BinaryDatagramCodec;
 import com.hkkt.communication.ChannelSelectorCannotStartException;
 import com.hkkt.communication.ClientConnectionManager;
+import com.hkkt.communication.Connection;
 import com.hkkt.communication.Datagram;
+import com.hkkt.communication.DatagramCodec;
 import com.hkkt.communication.DatagramMissingSenderReceiverException;
+import com.hkkt.communication.DatagramView;
 import com.hkkt.util.Encryptor;
-import com.hkkt.communication.KDC;
+import com.hkkt.util.PublicKeyCache;
+import com.hkkt.util.SecureSession;
 import com.hkkt.communication.ServerConnectionManager;
 import com.hkkt.votingsystem.AbstractServer;
 import com.hkkt.votingsystem.VotingDatagram;
@@ -38,8 +43,6 @@ import java.net.InetSocketAddress;
 import java.security.InvalidKeyException;
 import java.security.KeyPair;
 import java.security.NoSuchAlgorithmException;
-import java.security.PublicKey;
-import java.util.Arrays;
 import java.util.Iterator;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
@@ -56,14 +59,19 @@ import javax.crypto.SecretKey;
  */
 public class CLA extends AbstractServer {
   public static final String VALIDATION_TICKET_DELIMETER = " ";
+  // an RSA block minus the padding, and what fits a datagram with room to spare
+  private static final int MAX_RSA_LIST_LENGTH = 245;
+  private static final int MAX_SESSION_LIST_LENGTH = 2048;
   private static final int VALIDATION_NUM_LIMIT = Integer.MAX_VALUE;
   private final KeyPair ENCRYPTION_KEYS;
   private final SecretKey KDC_COMM_KEY;
   private final String NAME;
   private final int NUM_VOTERS;
+  private final PublicKeyCache PUBLIC_KEYS;
   private final ServerConnectionManager SERVER_MANAGER;
   private final ConcurrentHashMap<String, Integer> VALIDATION_TICKETS;
   private String ctfName;
+  private SecureSession ctfSession;
   private ClientConnectionManager clientManager;
   private boolean sentValidationTicketsToCTF = false;
 
@@ -83,13 +91,39 @@ public class CLA extends AbstractServer {
    * @throws javax.crypto.BadPaddingException
    */
   public CLA(String name, InetSocketAddress address, int numVoters) throws ChannelSelectorCannotStartException, IOException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, UnsupportedEncodingException, BadPaddingException {
-    this.SERVER_MANAGER = new ServerConnectionManager(address, this);
+    this(name, address, numVoters, new BinaryDatagramCodec());
+  }
+
+  /**
+   * Constructs a Central Legitimization Agency
+   *
+   * @param name CLA unique id
+   * @param address the address that the CLA is located at
+   * @param numVoters
+   * @param codec wire format used by the voters connecting to the CLA
+   * @throws ChannelSelectorCannotStartException
+   * @throws IOException
+   * @throws java.security.NoSuchAlgorithmException
+   * @throws javax.crypto.NoSuchPaddingException
+   * @throws java.security.InvalidKeyException
+   * @throws javax.crypto.IllegalBlockSizeException
+   * @throws java.io.UnsupportedEncodingException
+   * @throws javax.crypto.BadPaddingException
+   */
+  public CLA(String name, InetSocketAddress address, int numVoters, DatagramCodec codec) throws ChannelSelectorCannotStartException, IOException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, UnsupportedEncodingException, BadPaddingException {
+    this.SERVER_MANAGER = new ServerConnectionManager(address, this, ServerConnectionManager.SELECT_MODE.BLOCKING, codec);
 
     this.NAME = name;
     this.NUM_VOTERS = numVoters;
     this.VALIDATION_TICKETS = new ConcurrentHashMap<>();
     this.ENCRYPTION_KEYS = Encryptor.getInstance().genKeyPair();
     this.KDC_COMM_KEY = Encryptor.getInstance().registerWithKDC(name, this.ENCRYPTION_KEYS.getPublic());
+    this.PUBLIC_KEYS = new PublicKeyCache(name, this.KDC_COMM_KEY);
+  }
+
+  @Override
+  public boolean accepts(DatagramView datagram) {
+    return VotingDatagram.isVotingSystemDatagram(datagram);
   }
 
   /**
@@ -108,29 +142,65 @@ public class CLA extends AbstractServer {
    * @throws javax.crypto.BadPaddingException
    */
   public void connectToCTF(String name, InetSocketAddress address) throws ChannelSelectorCannotStartException, IOException, DatagramMissingSenderReceiverException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, UnsupportedEncodingException, IllegalBlockSizeException, BadPaddingException {
+    this.connectToCTF(name, address, Encryptor.DEFAULT_ENCRYPTION_MODE);
+  }
+
+  /**
+   * Connect to the Central Tabulation Facility
+   *
+   * @param name
+   * @param address the address that the CTF is located at
+   * @param mode how the validation numbers sent to the CTF are encrypted
+   * @throws ChannelSelectorCannotStartException
+   * @throws IOException
+   * @throws com.hkkt.communication.DatagramMissingSenderReceiverException
+   * @throws java.security.NoSuchAlgorithmException
+   * @throws javax.crypto.NoSuchPaddingException
+   * @throws java.security.InvalidKeyException
+   * @throws java.io.UnsupportedEncodingException
+   * @throws javax.crypto.IllegalBlockSizeException
+   * @throws javax.crypto.BadPaddingException
+   */
+  public void connectToCTF(String name, InetSocketAddress address, Encryptor.ENCRYPTION_MODE mode) throws ChannelSelectorCannotStartException, IOException, DatagramMissingSenderReceiverException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, UnsupportedEncodingException, IllegalBlockSizeException, BadPaddingException {
     byte[] nameBytes = this.NAME.getBytes(Datagram.STRING_ENCODING);
     this.ctfName = name;
-    this.clientManager = new ClientConnectionManager(this.NAME, this.encryptData(nameBytes, name), address);
+    this.ctfSession = mode == Encryptor.ENCRYPTION_MODE.SESSION ? SecureSession.create() : null;
+
+    if (this.ctfSession == null)
+      this.clientManager = new ClientConnectionManager(this.NAME, Encryptor.getInstance().encryptDecryptData(Cipher.ENCRYPT_MODE, nameBytes, this.PUBLIC_KEYS.get(name)), address);
+    else
+      this.clientManager = new ClientConnectionManager(this.NAME, this.ctfSession.handshake(nameBytes, this.PUBLIC_KEYS.get(name)), address);
   }
 
   /**
    * Method for CLA to handle incoming data
    *
+   * @param connection connection the data arrived on
    * @param datagram data that has been sent to the CLA
    */
   @Override
-  public void handleDatagram(Datagram datagram) {
+  public void handleDatagram(Connection connection, Datagram datagram) {
+    // the session and the reply are picked by sender, which has to be the client of the connection
+    if (!datagram.getSender().equals(connection.getName())) {
+      Logger.getLogger(CLA.class.getName()).log(Level.WARNING, "{0} sent a datagram as {1}, dropped.", new Object[]{connection.getName(), datagram.getSender()});
+
+      return;
+    }
+
     try {
       if (VotingDatagram.isVotingSystemDatagram(datagram)) {
         VotingDatagram votingDatagram = new VotingDatagram(datagram);
         Datagram response = null;
+        // what the client sealed its request with and what it expects the reply to be sealed with
+        byte[] request = SecureSession.associatedData(votingDatagram.getOperationType().toString(), votingDatagram.getSender(), votingDatagram.getReceiver());
+        byte[] reply = SecureSession.associatedData(votingDatagram.getOperationType().toString(), votingDatagram.getReceiver(), votingDatagram.getSender());
         byte[] dataToEncrypt, data;
 
         switch (votingDatagram.getOperationType()) {
           case REQUEST_VALIDATION_NUM:
-            String decryptedData = new String(decryptData(votingDatagram.getData()), Datagram.STRING_ENCODING);
+            String decryptedData = new String(decryptData(votingDatagram.getData(), connection, request), Datagram.STRING_ENCODING);
             dataToEncrypt = Integer.toString(this.generateValidationTicket(decryptedData)).getBytes(Datagram.STRING_ENCODING);
-            data = encryptData(dataToEncrypt, votingDatagram.getSender());
+            data = encryptData(dataToEncrypt, connection, reply);
 
             System.out.println("CLA recevied request for validation number with encrypted data from " + votingDatagram.getSender() + ":\n" + new String(votingDatagram.getData(), Datagram.STRING_ENCODING));
             System.out.println("CLA " + votingDatagram.getSender() + " decrypted validation number request:\n" + decryptedData);
@@ -145,7 +215,7 @@ public class CLA extends AbstractServer {
             break;
           default:
             dataToEncrypt = "Unknown request. CLA cannot handle the requested operation.".getBytes(Datagram.STRING_ENCODING);
-            data = encryptData(dataToEncrypt, votingDatagram.getSender());
+            data = encryptData(dataToEncrypt, connection, SecureSession.associatedData(Datagram.DATA_TYPE.ERROR.toString(), votingDatagram.getReceiver(), votingDatagram.getSender()));
             response = datagram.flip(data, Datagram.DATA_TYPE.ERROR);
             break;
         }
@@ -159,27 +229,65 @@ public class CLA extends AbstractServer {
   }
 
   @Override
-  public void updateConnectionName(String name, Datagram datagram) {
+  public void updateConnectionName(Connection connection, Datagram datagram) {
     try {
-      String newName = new String(this.decryptData(datagram.getData()), Datagram.STRING_ENCODING);
-      this.SERVER_MANAGER.updateChannelId(name, newName);
+      SecureSession session = SecureSession.accept(datagram.getData(), this.ENCRYPTION_KEYS.getPrivate());
+      byte[] nameBytes = session == null ? this.decryptData(datagram.getData(), null, null) : session.openHandshake(datagram.getData());
+      String newName = new String(nameBytes, Datagram.STRING_ENCODING);
+
+      // a connection that has set up a session does not fall back to the key pair
+      if (session == null && this.session(connection) != null) {
+        Logger.getLogger(CLA.class.getName()).log(Level.WARNING, "{0} has set up a session, name not updated without one.", connection.getName());
+
+        return;
+      }
+
+      // datagrams of a connection are handled in order, so the session is in place before the next one. It stays with
+      // the connection even if the name is taken, everything else sent on it is then dropped as sent under a wrong name
+      if (session != null)
+        connection.setAttachment(session);
+
+      this.SERVER_MANAGER.updateChannelId(connection.getName(), newName);
     } catch (UnsupportedEncodingException | NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | IllegalBlockSizeException | BadPaddingException ex) {
       Logger.getLogger(CLA.class.getName()).log(Level.SEVERE, null, ex);
     }
   }
 
-  private byte[] decryptData(byte[] encryptedData) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, UnsupportedEncodingException, IllegalBlockSizeException, BadPaddingException {
-    // length of encrypted data is 256, but in datagram the data (bytes) gets converted to string and length limit
-    // is applied to string instead of bytes, string limit is 300 currently (trimming causes the byte data to be
-    // malformed since some of those bytes at start/end may look like spaces in string format)
-    byte[] data = Arrays.copyOf(encryptedData, 256);
-    return Encryptor.getInstance().encryptDecryptData(Cipher.DECRYPT_MODE, data, this.ENCRYPTION_KEYS.getPrivate());
+  /**
+   * Decrypt data received on a connection, with its session if it has one and with the private key otherwise.
+   *
+   * @param connection connection the data arrived on, null for data that cannot be sealed with a session
+   * @param associatedData header fields the data is bound to, see SecureSession.associatedData
+   */
+  private byte[] decryptData(byte[] encryptedData, Connection connection, byte[] associatedData) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, UnsupportedEncodingException, IllegalBlockSizeException, BadPaddingException {
+    SecureSession session = connection == null ? null : this.session(connection);
+
+    if (session != null)
+      return session.open(encryptedData, associatedData);
+
+    return Encryptor.getInstance().encryptDecryptData(Cipher.DECRYPT_MODE, encryptedData, this.ENCRYPTION_KEYS.getPrivate());
+  }
+
+  /**
+   * Encrypt data for a client connected to the CLA.
+   */
+  private byte[] encryptData(byte[] plainData, Connection connection, byte[] associatedData) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, UnsupportedEncodingException, BadPaddingException {
+    SecureSession session = this.session(connection);
+
+    if (session != null)
+      return session.seal(plainData, associatedData);
+
+    return Encryptor.getInstance().encryptDecryptData(Cipher.ENCRYPT_MODE, plainData, this.PUBLIC_KEYS.get(connection.getName()));
   }
 
-  private byte[] encryptData(byte[] plainData, String receiver) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, UnsupportedEncodingException, BadPaddingException {
-    byte[] encryptedKey = KDC.getInstance().getKey(this.NAME, receiver);
-    PublicKey key = (PublicKey) Encryptor.getInstance().decryptKey(encryptedKey, this.KDC_COMM_KEY, "RSA", Cipher.PUBLIC_KEY);
-    return Encryptor.getInstance().encryptDecryptData(Cipher.ENCRYPT_MODE, plainData, key);
+  /**
+   * Encrypt data sent over the connection to the CTF.
+   */
+  private byte[] encryptForCTF(byte[] plainData) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, UnsupportedEncodingException, BadPaddingException {
+    if (this.ctfSession != null)
+      return this.ctfSession.seal(plainData, SecureSession.associatedData(VotingDatagram.ACTION_TYPE.SEND_VALIDATION_LIST.toString(), this.NAME, ServerConnectionManager.SERVER_NAME));
+
+    return Encryptor.getInstance().encryptDecryptData(Cipher.ENCRYPT_MODE, plainData, this.PUBLIC_KEYS.get(this.ctfName));
   }
 
   /**
@@ -201,10 +309,18 @@ public class CLA extends AbstractServer {
     return alreadyRegistered ? -1 : validationTicket;
   }
 
+  /**
+   * Session of a connection, null if it has none and data sent on it is encrypted with the key pairs.
+   */
+  private SecureSession session(Connection connection) {
+    return connection.getAttachment() instanceof SecureSession ? (SecureSession) connection.getAttachment() : null;
+  }
+
   private void sendValidationTicketListToCTF() throws UnsupportedEncodingException, DatagramMissingSenderReceiverException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
     String list = "", nextInt;
     byte[] data;
     Iterator<Integer> validationTickets;
+    int maxLength = this.ctfSession == null ? MAX_RSA_LIST_LENGTH : MAX_SESSION_LIST_LENGTH;
 
     if (!this.sentValidationTicketsToCTF && this.VALIDATION_TICKETS.mappingCount() == this.NUM_VOTERS) {
       this.sentValidationTicketsToCTF = true;
@@ -214,24 +330,27 @@ public class CLA extends AbstractServer {
       while (validationTickets.hasNext()) {
         nextInt = validationTickets.next() + VALIDATION_TICKET_DELIMETER;
 
-        // encrypted data length has to be less then 256 (some bytes used for header)
-        if (list.getBytes(Datagram.STRING_ENCODING).length + nextInt.getBytes(Datagram.STRING_ENCODING).length < 245)
+        // with RSA the encrypted data has to fit a block, a session only has to keep the datagram small
+        if (list.getBytes(Datagram.STRING_ENCODING).length + nextInt.getBytes(Datagram.STRING_ENCODING).length < maxLength)
           list += nextInt;
         else {
           list = list.substring(0, list.length() - 1);
-          data = this.encryptData(list.getBytes(Datagram.STRING_ENCODING), this.ctfName);
+          data = this.encryptForCTF(list.getBytes(Datagram.STRING_ENCODING));
 
           System.out.println("CLA sending batch of validation numbers to CTF:\n" + list + "\nand encryped as:\n" + new String(data, Datagram.STRING_ENCODING));
 
-          clientManager.sendRequest(VotingDatagram.ACTION_TYPE.SEND_VALIDATION_LIST.toString(), null, data);
+          // the CTF does not answer, a pending reply would never complete
+          if (!clientManager.offerRequest(VotingDatagram.ACTION_TYPE.SEND_VALIDATION_LIST.toString(), null, data))
+            Logger.getLogger(CLA.class.getName()).log(Level.WARNING, "Send queue to CTF is full, validation numbers dropped.");
           list = nextInt;
 
         }
 
         if (!validationTickets.hasNext()) {
           list = list.substring(0, list.length() - 1);
-          data = this.encryptData(list.getBytes(Datagram.STRING_ENCODING), this.ctfName);
-          clientManager.sendRequest(VotingDatagram.ACTION_TYPE.SEND_VALIDATION_LIST.toString(), null, data);
+          data = this.encryptForCTF(list.getBytes(Datagram.STRING_ENCODING));
+          if (!clientManager.offerRequest(VotingDatagram.ACTION_TYPE.SEND_VALIDATION_LIST.toString(), null, data))
+            Logger.getLogger(CLA.class.getName()).log(Level.WARNING, "Send queue to CTF is full, validation numbers dropped.");
 
           System.out.println("CLA sending batch of validation numbers to CTF:\n" + list + "\nand encryped as:\n" + new String(data, Datagram.STRING_ENCODING));
         }
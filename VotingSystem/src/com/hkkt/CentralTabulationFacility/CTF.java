@@ -26,10 +26,13 @@ package com.hkkt.CentralTabulationFacility;
 import com.hkkt.CentralLegitimizationAgency.CLA;
 import com.hkkt.communication.ChannelSelectorCannotStartException;
 import com.hkkt.communication.ClientConnectionManager;
+import com.hkkt.communication.Connection;
 import com.hkkt.communication.Datagram;
 import com.hkkt.communication.DatagramMissingSenderReceiverException;
+import com.hkkt.communication.DatagramView;
 import com.hkkt.util.Encryptor;
-import com.hkkt.communication.KDC;
+import com.hkkt.util.PublicKeyCache;
+import com.hkkt.util.SecureSession;
 import com.hkkt.communication.ServerConnectionManager;
 import com.hkkt.votingsystem.AbstractServer;
 import com.hkkt.votingsystem.VotingDatagram;
@@ -39,9 +42,7 @@ import java.net.InetSocketAddress;
 import java.security.InvalidKeyException;
 import java.security.KeyPair;
 import java.security.NoSuchAlgorithmException;
-import java.security.PublicKey;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
@@ -65,6 +66,7 @@ public class CTF extends AbstractServer {
   private final SecretKey KDC_COMM_KEY;
   private final String NAME;
   private final int NUM_VOTERS;
+  private final PublicKeyCache PUBLIC_KEYS;
   private final ServerConnectionManager SERVER_MANAGER;
   private final List<Runnable> TASKS;
   private final List<Integer> VALIDATION_TICKETS;
@@ -95,6 +97,7 @@ public class CTF extends AbstractServer {
     this.VALIDATION_TICKETS = Collections.synchronizedList(new ArrayList<Integer>());
     this.ENCRYPTION_KEYS = Encryptor.getInstance().genKeyPair();
     this.KDC_COMM_KEY = Encryptor.getInstance().registerWithKDC(name, this.ENCRYPTION_KEYS.getPublic());
+    this.PUBLIC_KEYS = new PublicKeyCache(name, this.KDC_COMM_KEY);
 
     this.CROSSED_OFF = new ConcurrentHashMap<>();
     this.VOTE_RESULTS = new ConcurrentHashMap<>();
@@ -103,6 +106,11 @@ public class CTF extends AbstractServer {
     ballotOptions.forEach(option -> VOTE_RESULTS.put(option.toUpperCase(), Collections.synchronizedList(new ArrayList<Integer>())));
   }
 
+  @Override
+  public boolean accepts(DatagramView datagram) {
+    return VotingDatagram.isVotingSystemDatagram(datagram);
+  }
+
   public boolean addVoteTally(int idNum, String vote) {
     // System.out.println("Voted for " + vote.toUpperCase());
     if (this.VOTE_RESULTS.containsKey(vote.toUpperCase())) {
@@ -132,7 +140,7 @@ public class CTF extends AbstractServer {
    */
   public void connectToCLA(String name, InetSocketAddress address) throws ChannelSelectorCannotStartException, IOException, DatagramMissingSenderReceiverException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, UnsupportedEncodingException, IllegalBlockSizeException, BadPaddingException {
     byte[] nameBytes = this.NAME.getBytes(Datagram.STRING_ENCODING);
-    this.clientManager = new ClientConnectionManager(this.NAME, this.encryptData(nameBytes, name), address);
+    this.clientManager = new ClientConnectionManager(this.NAME, Encryptor.getInstance().encryptDecryptData(Cipher.ENCRYPT_MODE, nameBytes, this.PUBLIC_KEYS.get(name)), address);
   }
 
   public void crossValNum(int id, int validNum) {
@@ -143,20 +151,31 @@ public class CTF extends AbstractServer {
   /**
    * Method for CTF to handle incoming data
    *
+   * @param connection connection the data arrived on
    * @param datagram data that has been sent to the CTF
    */
   @Override
-  public void handleDatagram(Datagram datagram) {
+  public void handleDatagram(Connection connection, Datagram datagram) {
+    // the session and the reply are picked by sender, which has to be the client of the connection
+    if (!datagram.getSender().equals(connection.getName())) {
+      Logger.getLogger(CTF.class.getName()).log(Level.WARNING, "{0} sent a datagram as {1}, dropped.", new Object[]{connection.getName(), datagram.getSender()});
+
+      return;
+    }
+
     try {
       if (VotingDatagram.isVotingSystemDatagram(datagram)) {
         VotingDatagram votingDatagram = new VotingDatagram(datagram);
         Datagram response = null;
+        // what the client sealed its request with and what it expects the reply to be sealed with
+        byte[] request = SecureSession.associatedData(votingDatagram.getOperationType().toString(), votingDatagram.getSender(), votingDatagram.getReceiver());
+        byte[] reply = SecureSession.associatedData(votingDatagram.getOperationType().toString(), votingDatagram.getReceiver(), votingDatagram.getSender());
         byte[] dataToEncrypt, data;
         String decryptedData;
 
         switch (votingDatagram.getOperationType()) {
           case SEND_VALIDATION_LIST:
-            decryptedData = new String(decryptData(votingDatagram.getData()), Datagram.STRING_ENCODING);
+            decryptedData = new String(decryptData(votingDatagram.getData(), connection, request), Datagram.STRING_ENCODING);
             String[] ids = decryptedData.split("\\s+");
 
             System.out.println("CTF received batch of validation numbers from CLA encrypted as:\n" + new String(votingDatagram.getData(), Datagram.STRING_ENCODING) + "\ndecrypted as:\n" + decryptedData);
@@ -176,7 +195,7 @@ public class CTF extends AbstractServer {
             // response = votingDatagram.flip(data);
             break;
           case SUBMIT_VOTE:
-            decryptedData = new String(decryptData(votingDatagram.getData()), Datagram.STRING_ENCODING);
+            decryptedData = new String(decryptData(votingDatagram.getData(), connection, request), Datagram.STRING_ENCODING);
 
             System.out.println("CTF received vote from " + votingDatagram.getSender() + " with data encrypted as:\n" + new String(votingDatagram.getData(), Datagram.STRING_ENCODING) + "\ndecrypted as:\n" + decryptedData);
 
@@ -191,16 +210,16 @@ public class CTF extends AbstractServer {
                 crossValNum(randIdReceived, valNumReceived);
 
                 dataToEncrypt = Boolean.toString(true).getBytes(Datagram.STRING_ENCODING);
-                data = encryptData(dataToEncrypt, votingDatagram.getSender());
+                data = encryptData(dataToEncrypt, connection, reply);
                 response = votingDatagram.flip(data);
               } else {
                 dataToEncrypt = Boolean.toString(false).getBytes(Datagram.STRING_ENCODING);
-                data = encryptData(dataToEncrypt, votingDatagram.getSender());
+                data = encryptData(dataToEncrypt, connection, reply);
                 response = votingDatagram.flip(data);
               }
             else {
               dataToEncrypt = Boolean.toString(false).getBytes(Datagram.STRING_ENCODING);
-              data = encryptData(dataToEncrypt, votingDatagram.getSender());
+              data = encryptData(dataToEncrypt, connection, reply);
               response = votingDatagram.flip(data);
             }
 
@@ -209,7 +228,7 @@ public class CTF extends AbstractServer {
             break;
           default:
             dataToEncrypt = "Unknown request. CTF cannot handle the requested operation.".getBytes(Datagram.STRING_ENCODING);
-            data = encryptData(dataToEncrypt, votingDatagram.getSender());
+            data = encryptData(dataToEncrypt, connection, SecureSession.associatedData(Datagram.DATA_TYPE.ERROR.toString(), votingDatagram.getReceiver(), votingDatagram.getSender()));
             response = datagram.flip(data, Datagram.DATA_TYPE.ERROR);
             break;
         }
@@ -272,10 +291,25 @@ public class CTF extends AbstractServer {
   }
 
   @Override
-  public void updateConnectionName(String name, Datagram datagram) {
+  public void updateConnectionName(Connection connection, Datagram datagram) {
     try {
-      String newName = new String(this.decryptData(datagram.getData()), Datagram.STRING_ENCODING);
-      this.SERVER_MANAGER.updateChannelId(name, newName);
+      SecureSession session = SecureSession.accept(datagram.getData(), this.ENCRYPTION_KEYS.getPrivate());
+      byte[] nameBytes = session == null ? this.decryptData(datagram.getData(), null, null) : session.openHandshake(datagram.getData());
+      String newName = new String(nameBytes, Datagram.STRING_ENCODING);
+
+      // a connection that has set up a session does not fall back to the key pair
+      if (session == null && this.session(connection) != null) {
+        Logger.getLogger(CTF.class.getName()).log(Level.WARNING, "{0} has set up a session, name not updated without one.", connection.getName());
+
+        return;
+      }
+
+      // datagrams of a connection are handled in order, so the session is in place before the next one. It stays with
+      // the connection even if the name is taken, everything else sent on it is then dropped as sent under a wrong name
+      if (session != null)
+        connection.setAttachment(session);
+
+      this.SERVER_MANAGER.updateChannelId(connection.getName(), newName);
     } catch (UnsupportedEncodingException | NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | IllegalBlockSizeException | BadPaddingException ex) {
       Logger.getLogger(CLA.class.getName()).log(Level.SEVERE, null, ex);
     }
@@ -287,17 +321,34 @@ public class CTF extends AbstractServer {
     }
   }
 
-  private byte[] decryptData(byte[] encryptedData) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, UnsupportedEncodingException, IllegalBlockSizeException, BadPaddingException {
-    // length of encrypted data is 256, but in datagram the data (bytes) gets converted to string and length limit
-    // is applied to string instead of bytes, string limit is 300 currently (trimming causes the byte data to be
-    // malformed since some of those bytes at start/end may look like spaces in string format)
-    byte[] data = Arrays.copyOf(encryptedData, 256);
-    return Encryptor.getInstance().encryptDecryptData(Cipher.DECRYPT_MODE, data, this.ENCRYPTION_KEYS.getPrivate());
+  /**
+   * Decrypt data received on a connection, with its session if it has one and with the private key otherwise.
+   *
+   * @param connection connection the data arrived on, null for data that cannot be sealed with a session
+   * @param associatedData header fields the data is bound to, see SecureSession.associatedData
+   */
+  private byte[] decryptData(byte[] encryptedData, Connection connection, byte[] associatedData) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, UnsupportedEncodingException, IllegalBlockSizeException, BadPaddingException {
+    SecureSession session = connection == null ? null : this.session(connection);
+
+    if (session != null)
+      return session.open(encryptedData, associatedData);
+
+    return Encryptor.getInstance().encryptDecryptData(Cipher.DECRYPT_MODE, encryptedData, this.ENCRYPTION_KEYS.getPrivate());
   }
 
-  private byte[] encryptData(byte[] plainData, String receiver) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, UnsupportedEncodingException, BadPaddingException {
-    byte[] encryptedKey = KDC.getInstance().getKey(this.NAME, receiver);
-    PublicKey key = (PublicKey) Encryptor.getInstance().decryptKey(encryptedKey, this.KDC_COMM_KEY, "RSA", Cipher.PUBLIC_KEY);
-    return Encryptor.getInstance().encryptDecryptData(Cipher.ENCRYPT_MODE, plainData, key);
+  private byte[] encryptData(byte[] plainData, Connection connection, byte[] associatedData) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, UnsupportedEncodingException, BadPaddingException {
+    SecureSession session = this.session(connection);
+
+    if (session != null)
+      return session.seal(plainData, associatedData);
+
+    return Encryptor.getInstance().encryptDecryptData(Cipher.ENCRYPT_MODE, plainData, this.PUBLIC_KEYS.get(connection.getName()));
+  }
+
+  /**
+   * Session of a connection, null if it has none and data sent on it is encrypted with the key pairs.
+   */
+  private SecureSession session(Connection connection) {
+    return connection.getAttachment() instanceof SecureSession ? (SecureSession) connection.getAttachment() : null;
   }
 }
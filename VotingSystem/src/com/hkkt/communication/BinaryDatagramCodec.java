@@ -0,0 +1,224 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019 Hassan Khan, Kent Tsuenchy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.hkkt.communication;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Compact wire format. A frame is laid out as follows (all integers big endian):
+ * <pre>
+ *  int    length of the rest of the frame
+ *  byte   format version
+ *  byte   data type ordinal
+ *  long   timestamp in epoch milliseconds
+ *  long   correlation id, 0 if the datagram is not a request or a reply to one
+ *  short  sender length, followed by the sender
+ *  short  receiver length, followed by the receiver
+ *  short  other type length, followed by the other type
+ *  int    data length, followed by the data
+ * </pre>
+ * Strings are ISO-8859-1 encoded. Data is sent as is, so its length is preserved. Version 1 frames had no correlation
+ * id, they are rejected as UNSUPPORTED_VERSION.
+ *
+ * @author Kent Tsuenchy
+ */
+public class BinaryDatagramCodec implements DatagramCodec {
+  public static final byte FORMAT_VERSION = 2;
+  public static final int LENGTH_FIELD_SIZE = Integer.BYTES;
+  public static final int MAX_FIELD_LENGTH = 0xFFFF;
+  public static final int MAX_FRAME_LENGTH = FrameDecoder.DEFAULT_MAX_FRAME_LENGTH;
+  public static final int MIN_FRAME_LENGTH = LENGTH_FIELD_SIZE + 2 * Byte.BYTES + 2 * Long.BYTES + 3 * Short.BYTES
+    + Integer.BYTES;
+  private static final Charset CHARSET = Charset.forName(Datagram.STRING_ENCODING);
+  private static final int DATA_TYPE_COUNT = Datagram.DATA_TYPE.values().length;
+
+  @Override
+  public Datagram decode(ByteBuffer buffer) {
+    return this.view(buffer, null).toDatagram();
+  }
+
+  @Override
+  public byte[] encode(Datagram datagram) {
+    ByteBuffer buffer = ByteBuffer.allocate(this.encodedLength(datagram));
+
+    this.encode(datagram, buffer);
+
+    return buffer.array();
+  }
+
+  @Override
+  public boolean encode(Datagram datagram, ByteBuffer buffer) {
+    byte[] sender = datagram.getSender().getBytes(CHARSET);
+    byte[] receiver = datagram.getReceiver().getBytes(CHARSET);
+    byte[] otherType = datagram.getTypeOther().getBytes(CHARSET);
+    byte[] data = datagram.getData();
+    int length = frameLengthOf(sender, receiver, otherType, data);
+
+    if (length > buffer.remaining())
+      return false;
+
+    buffer.putInt(length - LENGTH_FIELD_SIZE);
+    buffer.put(FORMAT_VERSION);
+    buffer.put((byte) datagram.getType().ordinal());
+    buffer.putLong(datagram.getTimestamp().toEpochMilli());
+    buffer.putLong(datagram.getCorrelationId());
+    buffer.putShort((short) sender.length).put(sender);
+    buffer.putShort((short) receiver.length).put(receiver);
+    buffer.putShort((short) otherType.length).put(otherType);
+    buffer.putInt(data.length).put(data);
+
+    return true;
+  }
+
+  @Override
+  public int encodedLength(Datagram datagram) {
+    return frameLengthOf(datagram.getSender().getBytes(CHARSET), datagram.getReceiver().getBytes(CHARSET),
+      datagram.getTypeOther().getBytes(CHARSET), datagram.getData());
+  }
+
+  @Override
+  public int frameLength(ByteBuffer buffer) {
+    return frameLengthOf(buffer);
+  }
+
+  @Override
+  public boolean hasCorrelationId() {
+    return true;
+  }
+
+  /**
+   * Walk the field lengths of the frame without reading any field, so that junk is rejected without allocating or
+   * throwing.
+   *
+   * @param buffer buffer positioned at the start of a frame, the position is not moved
+   * <p>
+   * @return VALID, or why the frame would be rejected
+   */
+  @Override
+  public FRAME_STATUS validate(ByteBuffer buffer) {
+    return check(buffer);
+  }
+
+  /**
+   * Wrap the frame in a flyweight view instead of decoding it, fields are only read out of the buffer when asked for.
+   *
+   * @param buffer buffer positioned at the start of a frame, it must not change while the view is used
+   * @param previous view of the previous frame, reused if it is a view of this codec
+   * <p>
+   * @return view of the frame
+   */
+  @Override
+  public DatagramView view(ByteBuffer buffer, DatagramView previous) {
+    BinaryDatagramView view = previous instanceof BinaryDatagramView ? (BinaryDatagramView) previous : new BinaryDatagramView();
+
+    view.wrap(buffer);
+
+    return view;
+  }
+
+  static FRAME_STATUS check(ByteBuffer buffer) {
+    int start = buffer.position();
+    int end, position, length, typeOrdinal;
+
+    if (buffer.remaining() < LENGTH_FIELD_SIZE)
+      return FRAME_STATUS.BAD_FRAME_LENGTH;
+
+    length = buffer.getInt(start) + LENGTH_FIELD_SIZE;
+
+    if (length < MIN_FRAME_LENGTH || length > MAX_FRAME_LENGTH || length > buffer.remaining())
+      return FRAME_STATUS.BAD_FRAME_LENGTH;
+
+    end = start + length;
+    position = start + LENGTH_FIELD_SIZE;
+
+    if (buffer.get(position) != FORMAT_VERSION)
+      return FRAME_STATUS.UNSUPPORTED_VERSION;
+
+    typeOrdinal = buffer.get(position + 1);
+
+    if (typeOrdinal < 0 || typeOrdinal >= DATA_TYPE_COUNT)
+      return FRAME_STATUS.UNKNOWN_TYPE;
+
+    // sender, receiver and other type, the minimum frame length covers the fixed size fields
+    position += 2 * Byte.BYTES + 2 * Long.BYTES;
+
+    for (int i = 0; i < 3; i++) {
+      if (position + Short.BYTES > end)
+        return FRAME_STATUS.FIELD_OVERRUN;
+
+      position += Short.BYTES + (buffer.getShort(position) & 0xFFFF);
+    }
+
+    if (position + Integer.BYTES > end)
+      return FRAME_STATUS.FIELD_OVERRUN;
+
+    length = buffer.getInt(position);
+    position += Integer.BYTES;
+
+    if (length < 0 || length > end - position)
+      return FRAME_STATUS.FIELD_OVERRUN;
+
+    return position + length == end ? FRAME_STATUS.VALID : FRAME_STATUS.LENGTH_MISMATCH;
+  }
+
+  static int frameLengthOf(ByteBuffer buffer) {
+    int length;
+
+    if (buffer.remaining() < LENGTH_FIELD_SIZE)
+      return -1;
+
+    length = buffer.getInt(buffer.position()) + LENGTH_FIELD_SIZE;
+
+    if (length < MIN_FRAME_LENGTH || length > MAX_FRAME_LENGTH)
+      throw new IllegalArgumentException("Datagram frame length out of range.");
+
+    return length;
+  }
+
+  /**
+   * Length of the frame the encoded fields make up. The peer rejects frames that are longer than MAX_FRAME_LENGTH, and
+   * a name or type longer than MAX_FIELD_LENGTH would have its length field truncated, so neither is ever written.
+   *
+   * @param sender encoded sender
+   * @param receiver encoded receiver
+   * @param otherType encoded other type
+   * @param data data
+   * <p>
+   * @return length of the whole frame in bytes
+   * <p>
+   * @throws IllegalArgumentException if the peer could not decode the frame
+   */
+  static int frameLengthOf(byte[] sender, byte[] receiver, byte[] otherType, byte[] data) {
+    long length = (long) MIN_FRAME_LENGTH + sender.length + receiver.length + otherType.length + data.length;
+
+    if (sender.length > MAX_FIELD_LENGTH || receiver.length > MAX_FIELD_LENGTH || otherType.length > MAX_FIELD_LENGTH)
+      throw new IllegalArgumentException("Datagram sender, receiver or type is longer than " + MAX_FIELD_LENGTH + " bytes.");
+
+    if (length > MAX_FRAME_LENGTH)
+      throw new IllegalArgumentException("Datagram frame of " + length + " bytes is longer than " + MAX_FRAME_LENGTH + " bytes.");
+
+    return (int) length;
+  }
+}
@@ -0,0 +1,196 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019 Hassan Khan, Kent Tsuenchy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.hkkt.communication;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.time.Instant;
+
+/**
+ * Flyweight view of a frame in the BinaryDatagramCodec format. Wrapping a frame only checks its layout and records
+ * where each field starts, fields are read out of the buffer when they are asked for. The same view is reused for
+ * every frame a decoder reads, so it is only valid until the next frame is wrapped.
+ *
+ * @author Kent Tsuenchy
+ */
+final class BinaryDatagramView implements DatagramView {
+  private static final Charset CHARSET = Charset.forName(Datagram.STRING_ENCODING);
+  private static final Datagram.DATA_TYPE[] DATA_TYPES = Datagram.DATA_TYPE.values();
+  private ByteBuffer buffer;
+  private long correlationId;
+  private byte[] data;
+  private int dataLength;
+  private int dataOffset;
+  private String receiver;
+  private int receiverLength;
+  private int receiverOffset;
+  private byte[] scratch = new byte[ServerConnectionManager.MAX_NAME_LENGTH];
+  private String sender;
+  private int senderLength;
+  private int senderOffset;
+  private Instant timestamp;
+  private long timestampMillis;
+  private Datagram.DATA_TYPE type;
+  private String typeOther;
+  private int typeOtherLength;
+  private int typeOtherOffset;
+
+  @Override
+  public long getCorrelationId() {
+    return this.correlationId;
+  }
+
+  @Override
+  public byte[] getData() {
+    if (this.data == null) {
+      this.data = new byte[this.dataLength];
+      this.buffer.get(this.dataOffset, this.data);
+    }
+
+    return this.data;
+  }
+
+  @Override
+  public String getReceiver() {
+    if (this.receiver == null)
+      this.receiver = this.readString(this.receiverOffset, this.receiverLength);
+
+    return this.receiver;
+  }
+
+  @Override
+  public String getSender() {
+    if (this.sender == null)
+      this.sender = this.readString(this.senderOffset, this.senderLength);
+
+    return this.sender;
+  }
+
+  @Override
+  public Instant getTimestamp() {
+    if (this.timestamp == null)
+      this.timestamp = Instant.ofEpochMilli(this.timestampMillis);
+
+    return this.timestamp;
+  }
+
+  @Override
+  public Datagram.DATA_TYPE getType() {
+    return this.type;
+  }
+
+  @Override
+  public String getTypeOther() {
+    if (this.typeOther == null)
+      this.typeOther = this.readString(this.typeOtherOffset, this.typeOtherLength);
+
+    return this.typeOther;
+  }
+
+  @Override
+  public boolean isReceiver(String name) {
+    return this.receiver != null ? this.receiver.equals(name) : this.matches(this.receiverOffset, this.receiverLength, name);
+  }
+
+  @Override
+  public boolean isTypeOther(String typeOther) {
+    return this.typeOther != null ? this.typeOther.equals(typeOther) : this.matches(this.typeOtherOffset, this.typeOtherLength, typeOther);
+  }
+
+  @Override
+  public Datagram toDatagram() {
+    try {
+      return new Datagram(this.type, this.getTypeOther(), this.getSender(), this.getReceiver(), this.getData(), this.getTimestamp(), this.correlationId);
+    } catch (DatagramMissingSenderReceiverException ex) {
+      // a wrapped frame always has a sender and a receiver
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  /**
+   * Point the view at the frame starting at the buffer position and move the position to the end of the frame. The
+   * buffer must not be changed for as long as the view is used.
+   *
+   * @param buffer buffer positioned at the start of a complete frame
+   * <p>
+   * @throws IllegalArgumentException if the frame is malformed
+   */
+  void wrap(ByteBuffer buffer) {
+    DatagramCodec.FRAME_STATUS status = BinaryDatagramCodec.check(buffer);
+    int position = buffer.position() + BinaryDatagramCodec.LENGTH_FIELD_SIZE;
+
+    if (status != DatagramCodec.FRAME_STATUS.VALID)
+      throw new IllegalArgumentException("Malformed datagram frame: " + status + ".");
+
+    // field lengths have been checked, only offsets are left to work out
+    this.type = DATA_TYPES[buffer.get(position + 1)];
+    this.timestampMillis = buffer.getLong(position + 2);
+    this.correlationId = buffer.getLong(position + 2 + Long.BYTES);
+    position += 2 + 2 * Long.BYTES;
+    this.senderLength = buffer.getShort(position) & 0xFFFF;
+    this.senderOffset = position += Short.BYTES;
+    position += this.senderLength;
+    this.receiverLength = buffer.getShort(position) & 0xFFFF;
+    this.receiverOffset = position += Short.BYTES;
+    position += this.receiverLength;
+    this.typeOtherLength = buffer.getShort(position) & 0xFFFF;
+    this.typeOtherOffset = position += Short.BYTES;
+    position += this.typeOtherLength;
+    this.dataLength = buffer.getInt(position);
+    this.dataOffset = position + Integer.BYTES;
+
+    this.buffer = buffer;
+    this.data = null;
+    this.receiver = null;
+    this.sender = null;
+    this.timestamp = null;
+    this.typeOther = null;
+    buffer.position(this.dataOffset + this.dataLength);
+  }
+
+  private boolean matches(int offset, int length, String value) {
+    if (value == null || value.length() != length)
+      return false;
+
+    // ISO-8859-1, one byte per character
+    for (int i = 0; i < length; i++)
+      if ((this.buffer.get(offset + i) & 0xFF) != value.charAt(i))
+        return false;
+
+    return true;
+  }
+
+  private String readString(int offset, int length) {
+    if (this.buffer.hasArray())
+      return new String(this.buffer.array(), this.buffer.arrayOffset() + offset, length, CHARSET);
+
+    // pooled buffers are direct, copy through a buffer kept by the view
+    if (this.scratch.length < length)
+      this.scratch = new byte[length];
+
+    this.buffer.get(offset, this.scratch, 0, length);
+
+    return new String(this.scratch, 0, length, CHARSET);
+  }
+}
@@ -0,0 +1,223 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019 Hassan Khan, Kent Tsuenchy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.hkkt.communication;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded pool of direct buffers shared by the server and client connection managers. Buffers come in a few size
+ * classes, a request is served from the smallest class that is large enough. Requests larger than the largest class
+ * are allocated on the heap and are not pooled.
+ * <p>
+ * Every buffer that is acquired has to be released once it is no longer used. With leak detection on, the pool keeps
+ * track of where each outstanding buffer was acquired so that buffers that are never released can be reported.
+ *
+ * @author Kent Tsuenchy
+ */
+public class BufferPool {
+  public static final int DEFAULT_MAX_POOLED_PER_CLASS = 1024;
+  public static final int[] SIZE_CLASSES = {1024, 4096, 16384, 65536};
+  private static final Logger LOG = Logger.getLogger(BufferPool.class.getName());
+  private static BufferPool instance;
+
+  public static synchronized BufferPool getInstance() {
+    if (instance == null)
+      instance = new BufferPool(DEFAULT_MAX_POOLED_PER_CLASS);
+
+    return instance;
+  }
+
+  private final List<ConcurrentLinkedQueue<ByteBuffer>> FREE;
+  private final AtomicInteger[] FREE_COUNT;
+  private final AtomicLong HITS;
+  private final Set<ByteBuffer> LENT;
+  private final int MAX_POOLED_PER_CLASS;
+  private final AtomicLong MISSES;
+  private final AtomicLong OUTSTANDING;
+  private final Map<ByteBuffer, Throwable> TRACKED;
+  private volatile boolean leakDetection;
+
+  public BufferPool(int maxPooledPerClass) {
+    this.FREE = new ArrayList<>(SIZE_CLASSES.length);
+    this.FREE_COUNT = new AtomicInteger[SIZE_CLASSES.length];
+    this.HITS = new AtomicLong(0);
+    // buffers hash by content, so they have to be told apart by identity
+    this.LENT = Collections.newSetFromMap(Collections.synchronizedMap(new IdentityHashMap<>()));
+    this.MAX_POOLED_PER_CLASS = maxPooledPerClass;
+    this.MISSES = new AtomicLong(0);
+    this.OUTSTANDING = new AtomicLong(0);
+    this.TRACKED = Collections.synchronizedMap(new IdentityHashMap<>());
+    this.leakDetection = false;
+
+    for (int i = 0; i < SIZE_CLASSES.length; i++) {
+      this.FREE.add(new ConcurrentLinkedQueue<>());
+      this.FREE_COUNT[i] = new AtomicInteger(0);
+    }
+  }
+
+  /**
+   * Get a cleared buffer with room for at least the given number of bytes.
+   *
+   * @param minCapacity number of bytes needed
+   * <p>
+   * @return buffer ready to be written to
+   */
+  public ByteBuffer acquire(int minCapacity) {
+    int sizeClass = sizeClassOf(minCapacity);
+    ByteBuffer buffer;
+
+    if (sizeClass < 0)
+      return ByteBuffer.allocate(minCapacity);
+
+    buffer = this.FREE.get(sizeClass).poll();
+
+    if (buffer != null) {
+      this.FREE_COUNT[sizeClass].decrementAndGet();
+      this.HITS.incrementAndGet();
+      buffer.clear();
+    } else {
+      this.MISSES.incrementAndGet();
+      buffer = ByteBuffer.allocateDirect(SIZE_CLASSES[sizeClass]);
+    }
+
+    this.OUTSTANDING.incrementAndGet();
+    this.LENT.add(buffer);
+
+    if (this.leakDetection)
+      this.TRACKED.put(buffer, new Throwable("Buffer acquired here"));
+
+    return buffer;
+  }
+
+  public long getHits() {
+    return this.HITS.get();
+  }
+
+  public long getMisses() {
+    return this.MISSES.get();
+  }
+
+  /**
+   * Number of buffers that have been acquired and not released yet.
+   *
+   * @return number of outstanding buffers
+   */
+  public long getOutstanding() {
+    return this.OUTSTANDING.get();
+  }
+
+  public int getPooled() {
+    int pooled = 0;
+
+    for (AtomicInteger count : this.FREE_COUNT)
+      pooled += count.get();
+
+    return pooled;
+  }
+
+  public boolean isLeakDetectionEnabled() {
+    return this.leakDetection;
+  }
+
+  /**
+   * Give a buffer back to the pool. Buffers that were not handed out by this pool, e.g. heap buffers for oversized
+   * requests, are ignored. Once released, a buffer must not be used anymore, releasing it again is logged and ignored
+   * so that it cannot be handed out twice.
+   *
+   * @param buffer buffer to release, may be null
+   */
+  public void release(ByteBuffer buffer) {
+    int sizeClass;
+
+    if (buffer == null || !buffer.isDirect())
+      return;
+
+    sizeClass = sizeClassOf(buffer.capacity());
+
+    if (sizeClass < 0 || SIZE_CLASSES[sizeClass] != buffer.capacity())
+      return;
+
+    if (!this.LENT.remove(buffer)) {
+      LOG.log(Level.WARNING, "Released a buffer that was not acquired or was released twice.", new Throwable());
+
+      return;
+    }
+
+    if (this.leakDetection)
+      this.TRACKED.remove(buffer);
+
+    this.OUTSTANDING.decrementAndGet();
+
+    // bounded, anything beyond the limit is left for the garbage collector
+    if (this.FREE_COUNT[sizeClass].incrementAndGet() <= this.MAX_POOLED_PER_CLASS)
+      this.FREE.get(sizeClass).add(buffer);
+    else
+      this.FREE_COUNT[sizeClass].decrementAndGet();
+  }
+
+  /**
+   * Log where every buffer that is still outstanding was acquired. Only buffers acquired while leak detection was on
+   * are reported.
+   *
+   * @return number of buffers reported
+   */
+  public int reportLeaks() {
+    synchronized (this.TRACKED) {
+      this.TRACKED.values().forEach(site -> LOG.log(Level.WARNING, "Buffer was never released.", site));
+
+      return this.TRACKED.size();
+    }
+  }
+
+  /**
+   * Record where buffers are acquired so that leaks can be reported. This is expensive and meant for debugging.
+   *
+   * @param enabled whether to track outstanding buffers
+   */
+  public void setLeakDetection(boolean enabled) {
+    this.leakDetection = enabled;
+
+    if (!enabled)
+      this.TRACKED.clear();
+  }
+
+  private static int sizeClassOf(int capacity) {
+    for (int i = 0; i < SIZE_CLASSES.length; i++)
+      if (capacity <= SIZE_CLASSES[i])
+        return i;
+
+    return -1;
+  }
+}
@@ -23,19 +23,22 @@
  */
 package com.hkkt.communication;
 
-import com.hkkt.util.DataObservable;
 import com.hkkt.util.Hook;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
-import java.util.Iterator;
-import java.util.Observer;
-import java.util.Set;
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -44,17 +47,27 @@ import java.util.logging.Logger;
  * @author Kent Tsuenchy
  */
 public class ClientConnectionManager {
+  public static final int DEFAULT_SUBSCRIBER_BUFFER = Flow.defaultBufferSize();
   private static final String DEFAULT_RECIPIENT = "SERVER";
   private static final Logger LOG = Logger.getLogger(ClientConnectionManager.class.getName());
   private final SocketChannel CHANNEL;
-  private final DataObservable HOOKS;
-  private final ConcurrentHashMap<Hook, Observer> HOOKS_LIST;
+  private final AtomicBoolean CLOSED;
+  private final DatagramCodec CODEC;
+  private final CompletableFuture<ClientConnectionManager> CONNECTED;
+  private final FrameDecoder DECODER;
+  private final Executor DISPATCHER;
+  private final AtomicLong DROPPED;
+  private final ConcurrentHashMap<Hook, DatagramSubscriber> HOOKS;
+  private final ClientEventLoop LOOP;
   private final String NAME;
-  private final Selector SELECTOR;
-  private final ConcurrentLinkedDeque<Datagram> SEND_DATAGRAMS;
-  private final TaskHandler TASK_HANDLER;
-  private boolean channelActive;
-  private boolean die;
+  private final AtomicLong NEXT_CORRELATION_ID;
+  private final ConcurrentHashMap<Long, CompletableFuture<Datagram>> PENDING;
+  private final BufferPool POOL;
+  private final SubmissionPublisher<Datagram> PUBLISHER;
+  private final ConcurrentHashMap<String, SubmissionPublisher<Datagram>> PUBLISHERS;
+  private final LinkedBlockingDeque<Datagram> SEND_DATAGRAMS;
+  private ByteBuffer pendingWrite;
+  private volatile Thread writer;
 
   /**
    *
@@ -67,149 +80,571 @@ public class ClientConnectionManager {
    * @throws com.hkkt.communication.DatagramMissingSenderReceiverException
    */
   public ClientConnectionManager(String name, byte[] encryptedName, InetSocketAddress address) throws IOException, ChannelSelectorCannotStartException, DatagramMissingSenderReceiverException {
-    this.HOOKS = new DataObservable();
-    this.HOOKS_LIST = new ConcurrentHashMap<>();
-    this.SEND_DATAGRAMS = new ConcurrentLinkedDeque<>();
-    this.TASK_HANDLER = new TaskHandler();
-    this.channelActive = false;
-    this.die = false;
+    this(name, encryptedName, address, new BinaryDatagramCodec());
+  }
 
-    try {
-      SELECTOR = Selector.open();
-    } catch (IOException ex) {
-      LOG.log(Level.SEVERE, null, ex);
+  /**
+   *
+   * @param name should be less than 40 characters
+   * @param address
+   * @param encryptedName
+   * @param codec wire format used to encode and decode datagrams, has to match the format used by the server
+   *
+   * @throws IOException
+   * @throws com.hkkt.communication.ChannelSelectorCannotStartException
+   * @throws com.hkkt.communication.DatagramMissingSenderReceiverException
+   */
+  public ClientConnectionManager(String name, byte[] encryptedName, InetSocketAddress address, DatagramCodec codec) throws IOException, ChannelSelectorCannotStartException, DatagramMissingSenderReceiverException {
+    this(name, encryptedName, address, codec, ServerConnectionManager.TRANSPORT.REACTOR);
+  }
 
-      throw new ChannelSelectorCannotStartException("Failed to start up conneciton.");
-    }
+  /**
+   *
+   * @param name should be less than 40 characters
+   * @param address
+   * @param encryptedName
+   * @param codec wire format used to encode and decode datagrams, has to match the format used by the server
+   * @param transport REACTOR registers the channel with the shared ClientEventLoopGroup, THREAD_PER_CONNECTION uses
+   * blocking reads and writes on threads of their own
+   *
+   * @throws IOException
+   * @throws com.hkkt.communication.ChannelSelectorCannotStartException
+   * @throws com.hkkt.communication.DatagramMissingSenderReceiverException
+   */
+  public ClientConnectionManager(String name, byte[] encryptedName, InetSocketAddress address, DatagramCodec codec, ServerConnectionManager.TRANSPORT transport) throws IOException, ChannelSelectorCannotStartException, DatagramMissingSenderReceiverException {
+    this(name, encryptedName, address, codec, transport, null);
+  }
+
+  /**
+   *
+   * @param name should be less than 40 characters
+   * @param address
+   * @param encryptedName
+   * @param codec wire format used to encode and decode datagrams, has to match the format used by the server
+   * @param transport REACTOR registers the channel with the shared ClientEventLoopGroup, THREAD_PER_CONNECTION uses
+   * blocking reads and writes on threads of their own
+   * @param dispatcher runs subscribers and hooks, received datagrams are never handled on the thread reading the socket.
+   * If null the dispatcher shared by all clients, ClientEventLoopGroup.getDispatcher(), is used
+   *
+   * @throws IOException
+   * @throws com.hkkt.communication.ChannelSelectorCannotStartException
+   * @throws com.hkkt.communication.DatagramMissingSenderReceiverException
+   */
+  public ClientConnectionManager(String name, byte[] encryptedName, InetSocketAddress address, DatagramCodec codec, ServerConnectionManager.TRANSPORT transport, Executor dispatcher) throws IOException, ChannelSelectorCannotStartException, DatagramMissingSenderReceiverException {
+    this.CLOSED = new AtomicBoolean(false);
+    this.CODEC = codec;
+    this.CONNECTED = new CompletableFuture<>();
+    this.POOL = BufferPool.getInstance();
+    this.DECODER = new FrameDecoder(codec, Connection.DEFAULT_MAX_BUFFER_SIZE, this.POOL);
+    this.DISPATCHER = dispatcher != null ? dispatcher : ClientEventLoopGroup.getInstance().getDispatcher();
+    this.DROPPED = new AtomicLong(0);
+    this.HOOKS = new ConcurrentHashMap<>();
+    this.NEXT_CORRELATION_ID = new AtomicLong(Datagram.NO_CORRELATION_ID + 1);
+    this.PENDING = new ConcurrentHashMap<>();
+    this.PUBLISHER = new SubmissionPublisher<>(this.DISPATCHER, DEFAULT_SUBSCRIBER_BUFFER);
+    this.PUBLISHERS = new ConcurrentHashMap<>();
+    this.LOOP = transport == ServerConnectionManager.TRANSPORT.REACTOR ? ClientEventLoopGroup.getInstance().next() : null;
+    this.SEND_DATAGRAMS = new LinkedBlockingDeque<>(OutboundQueue.DEFAULT_MAX_DATAGRAMS);
 
     this.NAME = name;
     this.CHANNEL = SocketChannel.open();
 
-    Runnable selectorTask = () -> {
-      // TODO need to check how to kill thread if required to force quit
-      while (true)
-        try {
-          if (die)
-            break;
-
-          Thread.sleep(300);
-
-          int readyChannels = SELECTOR.selectNow();
-
-          if (readyChannels == 0)
-            continue;
-
-          Set<SelectionKey> selectedKeys = SELECTOR.selectedKeys();
-          Iterator<SelectionKey> keyIterator = selectedKeys.iterator();
-
-          while (keyIterator.hasNext()) {
-            SelectionKey key = keyIterator.next();
-            ByteBuffer buffer;
-
-            if (key.attachment() instanceof Connection)
-              buffer = ByteBuffer.allocate(((Connection) key.attachment()).getMaxBufferSize());
-            else
-              buffer = ByteBuffer.allocate(Connection.DEFAULT_MAX_BUFFER_SIZE);
-
-            if (!channelActive) {
-              channelActive = true;
-
-              if (key.isReadable()) {
-                CHANNEL.read(buffer);
-                buffer.flip();
-
-                if (HOOKS.countObservers() > 0)
-                  HOOKS.updateObservers(Datagram.fromBytes(buffer.array()));
-              } else if (key.isWritable() && SEND_DATAGRAMS.size() > 0) {
-                buffer.put(SEND_DATAGRAMS.poll().getBytes());
-                buffer.flip();
-                CHANNEL.write(buffer);
-              }
-            }
-
-            keyIterator.remove();
-            channelActive = false; // may cause issues if more than one channel is being used
-          }
-        } catch (IOException | DatagramMissingSenderReceiverException ex) {
-          // TODO log this to log file
-          LOG.log(Level.SEVERE, null, ex);
-        } catch (InterruptedException ex) {
-          break;
-        }
-    };
+    this.SEND_DATAGRAMS.add(new Datagram(Datagram.DATA_TYPE.UPDATE_ID, name, ServerConnectionManager.SERVER_NAME, encryptedName));
 
-    this.TASK_HANDLER.startTask(selectorTask);
+    // connecting does not block the caller, whenConnected() completes once the connection is established
+    if (transport == ServerConnectionManager.TRANSPORT.THREAD_PER_CONNECTION) {
+      VirtualThreads.start(name + "-reader", () -> this.readBlocking(address));
+
+      return;
+    }
 
-    this.SEND_DATAGRAMS.add(new Datagram(Datagram.DATA_TYPE.UPDATE_ID, name, ServerConnectionManager.SERVER_NAME, encryptedName));
     this.CHANNEL.configureBlocking(false);
-    this.CHANNEL.connect(address);
 
-    while (this.CHANNEL.isConnectionPending())
-      // do nothing for now, later on do set up if there is any
-      this.CHANNEL.finishConnect();
+    if (this.CHANNEL.connect(address))
+      this.CONNECTED.complete(this);
 
-    this.CHANNEL.register(this.SELECTOR, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    this.LOOP.register(this.CHANNEL, this);
   }
 
+  /**
+   * Open a connection without waiting for it to be established.
+   *
+   * @param name should be less than 40 characters
+   * @param encryptedName
+   * @param address
+   * <p>
+   * @return future completed with the manager once it is connected and its UPDATE_ID datagram is queued
+   * <p>
+   * @throws IOException
+   * @throws com.hkkt.communication.ChannelSelectorCannotStartException
+   * @throws com.hkkt.communication.DatagramMissingSenderReceiverException
+   */
+  public static CompletableFuture<ClientConnectionManager> connect(String name, byte[] encryptedName, InetSocketAddress address) throws IOException, ChannelSelectorCannotStartException, DatagramMissingSenderReceiverException {
+    return new ClientConnectionManager(name, encryptedName, address).whenConnected();
+  }
+
+  /**
+   * Run hook for every datagram received. The hook runs on the dispatcher, one datagram at a time.
+   *
+   * @param hook
+   */
   public void addHook(Hook hook) {
-    Observer o = (hooks, data) -> {
+    DatagramSubscriber subscriber = new DatagramSubscriber(data -> {
       hook.setHookData(data);
       hook.run();
-    };
-    this.HOOKS_LIST.put(hook, o);
-    this.HOOKS.addObserver(o);
+    });
+
+    if (this.HOOKS.putIfAbsent(hook, subscriber) == null)
+      this.subscribe(subscriber);
   }
 
   public void cleanup() {
-    this.TASK_HANDLER.cleanup();
-    this.die = true;
+    this.close();
+    this.CONNECTED.cancel(false);
+    this.HOOKS.clear();
+  }
 
-    try {
-      this.CHANNEL.close();
-    } catch (IOException ex) {
-      Logger.getLogger(ClientConnectionManager.class.getName()).log(Level.SEVERE, null, ex);
-    }
+  /**
+   * Number of received datagrams that were dropped because a subscriber's buffer was full.
+   *
+   * @return dropped datagrams
+   */
+  public long getDroppedDatagrams() {
+    return this.DROPPED.get();
+  }
 
-    try {
-      this.SELECTOR.close();
-    } catch (IOException ex) {
-      Logger.getLogger(ClientConnectionManager.class.getName()).log(Level.SEVERE, null, ex);
-    }
+  /**
+   * Number of requests sent with sendRequest that are still waiting for a reply.
+   *
+   * @return outstanding requests
+   */
+  public int getPendingRequests() {
+    return this.PENDING.size();
+  }
 
-    // TODO notify observers that client is closing
-    this.HOOKS.deleteObservers();
+  /**
+   * Number of datagrams waiting to be sent.
+   *
+   * @return queue depth
+   */
+  public int getQueuedDatagrams() {
+    return this.SEND_DATAGRAMS.size();
   }
 
-  public void removeHook(Hook hook) {
-    this.HOOKS.deleteObserver(this.HOOKS_LIST.get(hook));
+  /**
+   * Number of frames received from the server that were dropped, per reason.
+   *
+   * @return reject counters
+   */
+  public RejectCounters getRejectedFrames() {
+    return this.DECODER.getRejects();
   }
 
   /**
-   * Send message to the designated recipient
+   * Send message to the designated recipient if the send queue has room for it.
    *
    * @param receiver should be less than 40 characters
    * @param message should be less than 120 characters
+   * <p>
+   * @return true if the message was queued, false if the send queue is full
+   * <p>
    * @throws com.hkkt.communication.DatagramMissingSenderReceiverException
+   * @throws IllegalArgumentException if the datagram is too large for the codec
    */
-  public void sendMessage(String receiver, byte[] message) throws DatagramMissingSenderReceiverException {
+  public boolean offerMessage(String receiver, byte[] message) throws DatagramMissingSenderReceiverException {
     String r = receiver == null ? DEFAULT_RECIPIENT : receiver;
-    Datagram datagram = new Datagram(Datagram.DATA_TYPE.MESSAGE, NAME, r, message);
 
-    this.SEND_DATAGRAMS.add(datagram);
+    return this.offer(new Datagram(Datagram.DATA_TYPE.MESSAGE, NAME, r, message));
   }
 
   /**
-   * Send request
+   * Send request if the send queue has room for it.
    *
+   * @param requestType
    * @param receiver
+   * @param data
+   * <p>
+   * @return true if the request was queued, false if the send queue is full
+   * <p>
+   * @throws com.hkkt.communication.DatagramMissingSenderReceiverException
+   * @throws IllegalArgumentException if the datagram is too large for the codec
+   */
+  public boolean offerRequest(String requestType, String receiver, byte[] data) throws DatagramMissingSenderReceiverException {
+    String r = receiver == null ? DEFAULT_RECIPIENT : receiver;
+
+    return this.offer(new Datagram(Datagram.DATA_TYPE.OTHER, requestType, NAME, r, data));
+  }
+
+  public void removeHook(Hook hook) {
+    DatagramSubscriber subscriber = this.HOOKS.remove(hook);
+
+    if (subscriber != null)
+      subscriber.cancel();
+  }
+
+  /**
+   * Send message to the designated recipient
+   *
+   * @param receiver should be less than 40 characters
+   * @param message should be less than 120 characters
+   * @throws com.hkkt.communication.DatagramMissingSenderReceiverException
+   * @throws IllegalArgumentException if the datagram is too large for the codec
+   */
+  public void sendMessage(String receiver, byte[] message) throws DatagramMissingSenderReceiverException {
+    if (!this.offerMessage(receiver, message))
+      LOG.log(Level.WARNING, "Send queue of {0} is full, message dropped.", NAME);
+  }
+
+  /**
+   * Send request and wait for the reply without blocking. Any number of requests can be outstanding, replies are matched
+   * to their requests by correlation id in whatever order they arrive. The future is completed on the dispatcher. It
+   * stays incomplete until the reply arrives, so requests that are not answered should be sent with offerRequest, or
+   * the future cancelled or given a timeout.
+   *
    * @param requestType
+   * @param receiver
    * @param data
+   * <p>
+   * @return future completed with the reply, or exceptionally if the request was dropped or the connection closed
+   * <p>
    * @throws com.hkkt.communication.DatagramMissingSenderReceiverException
+   * @throws IllegalArgumentException if the datagram is too large for the codec
    */
-  public void sendRequest(String requestType, String receiver, byte[] data) throws DatagramMissingSenderReceiverException {
+  public CompletableFuture<Datagram> sendRequest(String requestType, String receiver, byte[] data) throws DatagramMissingSenderReceiverException {
     String r = receiver == null ? DEFAULT_RECIPIENT : receiver;
-    Datagram datagram = new Datagram(Datagram.DATA_TYPE.OTHER, requestType, NAME, r, data);
+    long correlationId = this.NEXT_CORRELATION_ID.getAndIncrement();
+    CompletableFuture<Datagram> reply = new CompletableFuture<>();
+    Datagram request = new Datagram(Datagram.DATA_TYPE.OTHER, requestType, NAME, r, data, Instant.now(), correlationId);
+    boolean queued;
+
+    // registered before sending, the reply may arrive before offer returns
+    this.PENDING.put(correlationId, reply);
+    reply.whenComplete((datagram, ex) -> this.PENDING.remove(correlationId, reply));
+
+    try {
+      queued = this.offer(request);
+    } catch (IllegalArgumentException ex) {
+      this.PENDING.remove(correlationId, reply);
+      throw ex;
+    }
+
+    if (!queued) {
+      LOG.log(Level.WARNING, "Send queue of {0} is full, request dropped.", NAME);
+      reply.completeExceptionally(new IllegalStateException("Send queue is full."));
+    } else if (!this.CODEC.hasCorrelationId())
+      reply.completeExceptionally(new UnsupportedOperationException("Replies cannot be matched to requests in the " + this.CODEC.getClass().getSimpleName() + " format."));
+    else if (this.CLOSED.get())
+      reply.completeExceptionally(new ClosedChannelException());
+
+    return reply;
+  }
 
-    this.SEND_DATAGRAMS.add(datagram);
+  /**
+   * Receive every datagram sent to this client. Datagrams are delivered on the dispatcher as the subscriber requests
+   * them, up to DEFAULT_SUBSCRIBER_BUFFER are buffered for a subscriber that falls behind, beyond that they are dropped.
+   * The subscriber is completed once the connection is closed.
+   *
+   * @param subscriber
+   */
+  public void subscribe(Flow.Subscriber<? super Datagram> subscriber) {
+    this.PUBLISHER.subscribe(subscriber);
+  }
+
+  /**
+   * Receive the datagrams sent to this client with the given request type, see subscribe(Flow.Subscriber).
+   *
+   * @param requestType type of the OTHER datagrams to receive
+   * @param subscriber
+   */
+  public void subscribe(String requestType, Flow.Subscriber<? super Datagram> subscriber) {
+    SubmissionPublisher<Datagram> publisher = this.PUBLISHERS.computeIfAbsent(requestType, key -> new SubmissionPublisher<>(this.DISPATCHER, DEFAULT_SUBSCRIBER_BUFFER));
+
+    publisher.subscribe(subscriber);
+
+    // closed while subscribing
+    if (this.CLOSED.get())
+      publisher.close();
+  }
+
+  /**
+   * Future that completes once the channel is connected. Datagrams sent before that are queued and written as soon as
+   * the connection is up.
+   *
+   * @return future completed with this manager, or exceptionally if the connection failed
+   */
+  public CompletableFuture<ClientConnectionManager> whenConnected() {
+    return this.CONNECTED;
+  }
+
+  /**
+   * Whether there is anything left to send, either queued or partly written.
+   *
+   * @return true if write interest is needed
+   */
+  boolean hasPendingWrites() {
+    return this.pendingWrite != null || !this.SEND_DATAGRAMS.isEmpty();
+  }
+
+  /**
+   * Called by the event loop when the connection attempt has finished.
+   *
+   * @param key selection key of the channel
+   */
+  void processConnectable(SelectionKey key) {
+    try {
+      if (!this.CHANNEL.finishConnect())
+        return;
+
+      key.interestOps(SelectionKey.OP_READ);
+      this.updateWriteInterest(key);
+      this.CONNECTED.complete(this);
+    } catch (IOException ex) {
+      LOG.log(Level.SEVERE, null, ex);
+      this.close();
+      this.CONNECTED.completeExceptionally(ex);
+    }
+  }
+
+  /**
+   * Called by the event loop when reading, decoding or writing failed. The channel cannot be trusted any more, its key is
+   * cancelled right away so that the loop does not keep selecting it, and the manager is closed.
+   *
+   * @param key selection key of the channel
+   */
+  void processFailure(SelectionKey key) {
+    key.cancel();
+    this.close();
+  }
+
+  /**
+   * Called by the event loop when the channel is readable. A read may hold any number of datagrams including a partial
+   * one.
+   *
+   * @param key selection key of the channel
+   * <p>
+   * @throws IOException
+   */
+  void processReadable(SelectionKey key) throws IOException {
+    int read = this.DECODER.readFrom(this.CHANNEL);
+    Datagram datagram;
+
+    // a frame that fails to decode must not keep a closed stream registered
+    try {
+      while ((datagram = this.DECODER.nextFrame()) != null)
+        this.publish(datagram);
+    } finally {
+      if (read < 0)
+        this.close();
+    }
+  }
+
+  /**
+   * Called by the event loop when the channel is writable. Writes queued datagrams until the queue is empty or the
+   * socket cannot take any more.
+   *
+   * @param key selection key of the channel
+   * <p>
+   * @throws IOException
+   */
+  void processWritable(SelectionKey key) throws IOException {
+    Datagram datagram;
+
+    while (this.flushPendingWrite() && (datagram = this.SEND_DATAGRAMS.poll()) != null)
+      this.pendingWrite = this.encode(datagram);
+
+    this.updateWriteInterest(key);
+  }
+
+  /**
+   * Set write interest to match whether there is anything to send. Only called on the event loop thread.
+   *
+   * @param key selection key of the channel
+   */
+  void updateWriteInterest(SelectionKey key) {
+    // only OP_CONNECT is of interest until the connection is established
+    if (!this.CHANNEL.isConnected())
+      return;
+
+    if (this.hasPendingWrites())
+      key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+    else
+      key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+  }
+
+  private void close() {
+    if (!this.CLOSED.compareAndSet(false, true))
+      return;
+
+    if (this.writer != null)
+      this.writer.interrupt();
+
+    if (this.LOOP != null) {
+      this.LOOP.deregister(this.CHANNEL);
+      // buffers are only touched by the loop thread
+      this.LOOP.execute(() -> {
+        this.DECODER.release();
+        this.POOL.release(this.pendingWrite);
+        this.pendingWrite = null;
+      });
+    }
+
+    try {
+      this.CHANNEL.close();
+    } catch (IOException ex) {
+      LOG.log(Level.SEVERE, null, ex);
+    }
+
+    // nothing is going to answer requests still waiting for a reply
+    if (!this.PENDING.isEmpty())
+      this.DISPATCHER.execute(() -> this.PENDING.values().forEach(reply -> reply.completeExceptionally(new ClosedChannelException())));
+
+    // subscribers are completed once they have handled what was already received
+    this.PUBLISHER.close();
+    this.PUBLISHERS.values().forEach(SubmissionPublisher::close);
+  }
+
+  private boolean dropped(Flow.Subscriber<? super Datagram> subscriber, Datagram datagram) {
+    this.DROPPED.incrementAndGet();
+    LOG.log(Level.WARNING, "Subscriber of {0} is not keeping up, datagram dropped.", NAME);
+
+    return false;
+  }
+
+  private ByteBuffer encode(Datagram datagram) {
+    ByteBuffer buffer = this.POOL.acquire(Connection.DEFAULT_MAX_BUFFER_SIZE);
+
+    if (!this.CODEC.encode(datagram, buffer)) {
+      byte[] bytes = this.CODEC.encode(datagram);
+
+      this.POOL.release(buffer);
+      buffer = this.POOL.acquire(bytes.length);
+      buffer.put(bytes);
+    }
+
+    buffer.flip();
+
+    return buffer;
+  }
+
+  /**
+   * Write out what is left of the current datagram.
+   *
+   * @return true if nothing is left pending
+   * <p>
+   * @throws IOException
+   */
+  private boolean flushPendingWrite() throws IOException {
+    if (this.pendingWrite == null)
+      return true;
+
+    this.CHANNEL.write(this.pendingWrite);
+
+    if (this.pendingWrite.hasRemaining())
+      return false;
+
+    this.POOL.release(this.pendingWrite);
+    this.pendingWrite = null;
+
+    return true;
+  }
+
+  private boolean offer(Datagram datagram) {
+    // measured here so that a datagram that cannot be encoded fails its sender instead of the loop thread
+    this.CODEC.encodedLength(datagram);
+
+    if (!this.SEND_DATAGRAMS.offer(datagram))
+      return false;
+
+    if (this.LOOP != null)
+      this.LOOP.updateWriteInterest(this.CHANNEL);
+
+    return true;
+  }
+
+  /**
+   * Hand a received datagram to the request it answers and to the subscribers, without waiting for either. A
+   * subscriber with a full buffer misses the datagram.
+   *
+   * @param datagram received datagram
+   */
+  private void publish(Datagram datagram) {
+    long correlationId = datagram.getCorrelationId();
+    CompletableFuture<Datagram> reply = correlationId == Datagram.NO_CORRELATION_ID ? null : this.PENDING.remove(correlationId);
+    String requestType = datagram.getTypeOther();
+    SubmissionPublisher<Datagram> publisher = requestType == null ? null : this.PUBLISHERS.get(requestType);
+
+    // dependent stages run on the dispatcher, not on the thread reading the socket
+    if (reply != null)
+      this.DISPATCHER.execute(() -> reply.complete(datagram));
+
+    this.publish(this.PUBLISHER, datagram);
+
+    if (publisher != null)
+      this.publish(publisher, datagram);
+  }
+
+  private void publish(SubmissionPublisher<Datagram> publisher, Datagram datagram) {
+    if (!publisher.hasSubscribers())
+      return;
+
+    try {
+      publisher.offer(datagram, this::dropped);
+    } catch (IllegalStateException ex) {
+      // closed by clean up while reading
+    }
+  }
+
+  private void readBlocking(InetSocketAddress address) {
+    try {
+      int read = 0;
+      Datagram datagram;
+
+      this.CHANNEL.connect(address);
+      this.writer = VirtualThreads.start(this.NAME + "-writer", this::writeBlocking);
+      this.CONNECTED.complete(this);
+
+      // cleaned up while connecting
+      if (this.CLOSED.get())
+        this.writer.interrupt();
+
+      while (!this.CLOSED.get() && read >= 0) {
+        read = this.DECODER.readFrom(this.CHANNEL);
+
+        while ((datagram = this.DECODER.nextFrame()) != null)
+          this.publish(datagram);
+      }
+    } catch (IOException ex) {
+      // channel is closed on clean up
+      if (!this.CLOSED.get())
+        LOG.log(Level.SEVERE, null, ex);
+
+      this.CONNECTED.completeExceptionally(ex);
+    }
+
+    // the server went away, stop the writer and fail whatever is still waiting for it
+    this.close();
+    this.DECODER.release();
+  }
+
+  private void writeBlocking() {
+    try {
+      while (!this.CLOSED.get()) {
+        ByteBuffer buffer = this.encode(this.SEND_DATAGRAMS.take());
+
+        try {
+          // a blocking channel writes everything at once
+          this.CHANNEL.write(buffer);
+        } finally {
+          this.POOL.release(buffer);
+        }
+      }
+    } catch (IOException ex) {
+      if (!this.CLOSED.get())
+        LOG.log(Level.SEVERE, null, ex);
+
+      this.close();
+    } catch (InterruptedException ex) {
+      // stopped
+    }
   }
 }
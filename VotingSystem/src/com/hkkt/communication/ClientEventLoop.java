@@ -0,0 +1,203 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019 Hassan Khan, Kent Tsuenchy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.hkkt.communication;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Selector loop shared by many ClientConnectionManagers. Reads, writes and frame decoding are done on the loop thread.
+ * Received datagrams are handed to each manager's dispatcher executor, so subscriber callbacks, hooks and the
+ * completion of request futures run there and never on the loop thread.
+ *
+ * @author Kent Tsuenchy
+ */
+public class ClientEventLoop implements Runnable {
+  private static final Logger LOG = Logger.getLogger(ClientEventLoop.class.getName());
+  private final AtomicInteger LOAD;
+  private final ConcurrentLinkedQueue<Runnable> PENDING_OPERATIONS;
+  private final Selector SELECTOR;
+  private final AtomicLong WAKEUPS;
+
+  public ClientEventLoop() throws IOException {
+    this.LOAD = new AtomicInteger(0);
+    this.PENDING_OPERATIONS = new ConcurrentLinkedQueue<>();
+    this.SELECTOR = Selector.open();
+    this.WAKEUPS = new AtomicLong(0);
+  }
+
+  public void close() {
+    try {
+      this.SELECTOR.close();
+    } catch (IOException ex) {
+      LOG.log(Level.WARNING, null, ex);
+    }
+  }
+
+  /**
+   * Deregister a channel from this loop. The channel is not closed. Called once per registered channel.
+   *
+   * @param channel channel to deregister
+   */
+  public void deregister(SocketChannel channel) {
+    this.LOAD.decrementAndGet();
+
+    this.execute(() -> {
+      SelectionKey key = channel.keyFor(this.SELECTOR);
+
+      if (key != null)
+        key.cancel();
+    });
+  }
+
+  /**
+   * Run an operation on the loop thread before its next select.
+   *
+   * @param operation operation to run
+   */
+  public void execute(Runnable operation) {
+    this.PENDING_OPERATIONS.add(operation);
+    this.SELECTOR.wakeup();
+  }
+
+  /**
+   * Number of channels registered with this loop.
+   *
+   * @return number of channels
+   */
+  public int getLoad() {
+    return this.LOAD.get();
+  }
+
+  public long getWakeups() {
+    return this.WAKEUPS.get();
+  }
+
+  /**
+   * Register a channel for reads, and for writes if the manager already has datagrams to send. A channel that is still
+   * connecting is registered for OP_CONNECT first.
+   *
+   * @param channel channel in non-blocking mode
+   * @param manager manager handling the channel
+   */
+  public void register(SocketChannel channel, ClientConnectionManager manager) {
+    this.LOAD.incrementAndGet();
+
+    this.execute(() -> {
+      try {
+        int ops = SelectionKey.OP_READ | (manager.hasPendingWrites() ? SelectionKey.OP_WRITE : 0);
+
+        if (channel.isConnectionPending())
+          ops = SelectionKey.OP_CONNECT;
+
+        channel.register(this.SELECTOR, ops, manager);
+      } catch (ClosedChannelException ex) {
+        // manager was cleaned up before the channel got registered
+      }
+    });
+  }
+
+  @Override
+  public void run() {
+    while (!Thread.currentThread().isInterrupted())
+      try {
+        this.runPendingOperations();
+
+        int readyChannels = this.SELECTOR.select();
+
+        this.WAKEUPS.incrementAndGet();
+
+        if (readyChannels == 0)
+          continue;
+
+        Iterator<SelectionKey> keyIterator = this.SELECTOR.selectedKeys().iterator();
+
+        while (keyIterator.hasNext()) {
+          SelectionKey key = keyIterator.next();
+
+          keyIterator.remove();
+
+          if (!(key.attachment() instanceof ClientConnectionManager)) {
+            LOG.log(Level.WARNING, "Unrecognized attachment for channel.");
+            continue;
+          }
+
+          ClientConnectionManager manager = (ClientConnectionManager) key.attachment();
+
+          try {
+            if (key.isConnectable())
+              manager.processConnectable(key);
+
+            if (key.isValid() && key.isReadable())
+              manager.processReadable(key);
+
+            if (key.isValid() && key.isWritable())
+              manager.processWritable(key);
+          } catch (CancelledKeyException | ClosedChannelException ex) {
+            // manager was cleaned up while handling the key
+          } catch (IOException ex) {
+            // a failed channel stays ready, it would be selected again on every pass
+            LOG.log(Level.SEVERE, null, ex);
+            manager.processFailure(key);
+          }
+        }
+      } catch (ClosedSelectorException ex) {
+        break;
+      } catch (IOException ex) {
+        LOG.log(Level.SEVERE, null, ex);
+      }
+  }
+
+  /**
+   * Turn write interest on for a channel if its manager has datagrams to send, otherwise turn it off.
+   *
+   * @param channel channel of the manager
+   */
+  public void updateWriteInterest(SocketChannel channel) {
+    this.execute(() -> {
+      SelectionKey key = channel.keyFor(this.SELECTOR);
+
+      if (key != null && key.isValid())
+        ((ClientConnectionManager) key.attachment()).updateWriteInterest(key);
+    });
+  }
+
+  private void runPendingOperations() {
+    Runnable operation;
+
+    while ((operation = this.PENDING_OPERATIONS.poll()) != null)
+      operation.run();
+  }
+}
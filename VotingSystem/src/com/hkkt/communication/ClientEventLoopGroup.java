@@ -0,0 +1,128 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019 Hassan Khan, Kent Tsuenchy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.hkkt.communication;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fixed group of event loops that all ClientConnectionManagers in the JVM register their channels with, so that a
+ * client connection costs a selection key and some buffers rather than a selector and a thread. The group also owns the
+ * dispatcher the managers hand received datagrams to.
+ *
+ * @author Kent Tsuenchy
+ */
+public class ClientEventLoopGroup {
+  public static final int DEFAULT_EVENT_LOOPS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+  private static final Logger LOG = Logger.getLogger(ClientEventLoopGroup.class.getName());
+  private static ClientEventLoopGroup instance;
+
+  public static synchronized ClientEventLoopGroup getInstance() throws ChannelSelectorCannotStartException {
+    if (instance == null)
+      instance = new ClientEventLoopGroup(DEFAULT_EVENT_LOOPS);
+
+    return instance;
+  }
+
+  private final Executor DISPATCHER;
+  private final ClientEventLoop[] LOOPS;
+  private final AtomicInteger NEXT_LOOP;
+  private final TaskHandler TASK_HANDLER;
+
+  private ClientEventLoopGroup(int numLoops) throws ChannelSelectorCannotStartException {
+    this.LOOPS = new ClientEventLoop[numLoops];
+    this.NEXT_LOOP = new AtomicInteger(0);
+
+    try {
+      for (int i = 0; i < this.LOOPS.length; i++)
+        this.LOOPS[i] = new ClientEventLoop();
+    } catch (IOException ex) {
+      LOG.log(Level.SEVERE, null, ex);
+
+      for (ClientEventLoop loop : this.LOOPS)
+        if (loop != null)
+          loop.close();
+
+      throw new ChannelSelectorCannotStartException("Failed to start up conneciton.");
+    }
+
+    this.TASK_HANDLER = new TaskHandler(ClientEventLoopGroup.class.getSimpleName(), numLoops, 0, TaskHandler.REJECTION_POLICY.ABORT);
+
+    for (ClientEventLoop loop : this.LOOPS)
+      this.TASK_HANDLER.startTask(loop);
+
+    // platform threads are pooled, once the queue is full the loops wait for room rather than drop a datagram
+    this.DISPATCHER = VirtualThreads.isAvailable() ? VirtualThreads.executor(ClientEventLoopGroup.class.getSimpleName() + "-dispatch")
+      : new TaskHandler(ClientEventLoopGroup.class.getSimpleName() + "-dispatch", TaskHandler.DEFAULT_THREADS, TaskHandler.DEFAULT_QUEUE_CAPACITY, TaskHandler.REJECTION_POLICY.BLOCK)::startTask;
+  }
+
+  /**
+   * Number of channels registered with the loops of this group.
+   *
+   * @return number of channels
+   */
+  public int getConnections() {
+    int connections = 0;
+
+    for (ClientEventLoop loop : this.LOOPS)
+      connections += loop.getLoad();
+
+    return connections;
+  }
+
+  /**
+   * Executor shared by all clients for their subscribers, hooks and request futures. A virtual thread per task if the
+   * JVM has them, otherwise a bounded pool of DEFAULT_THREADS threads.
+   *
+   * @return the dispatcher
+   */
+  public Executor getDispatcher() {
+    return this.DISPATCHER;
+  }
+
+  public long getSelectorWakeups() {
+    long wakeups = 0;
+
+    for (ClientEventLoop loop : this.LOOPS)
+      wakeups += loop.getWakeups();
+
+    return wakeups;
+  }
+
+  public int getSize() {
+    return this.LOOPS.length;
+  }
+
+  /**
+   * Pick the event loop for a new connection, round robin.
+   *
+   * @return event loop
+   */
+  public ClientEventLoop next() {
+    return this.LOOPS[Math.floorMod(this.NEXT_LOOP.getAndIncrement(), this.LOOPS.length)];
+  }
+}
@@ -27,9 +27,11 @@ import com.hkkt.votingsystem.AbstractServer;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -39,34 +41,81 @@ import java.util.logging.Logger;
  */
 public class Connection implements Runnable {
   public static final int DEFAULT_MAX_BUFFER_SIZE = 4096;
+  public static final int MAX_WRITE_BUFFERS = 16;
   public static final int MINIMUM_BUFFER_SIZE = 1024;
   private static final Logger LOG = Logger.getLogger(Connection.class.getName());
   private final AtomicBoolean ACTIVE;
+  private final AtomicReference<SocketChannel> CHANNEL;
   private final AtomicBoolean CONNECTED;
   private final AtomicBoolean CREATED;
+  private final FrameDecoder DECODER;
   private final AtomicBoolean LISTENING;
+  private final ConcurrentLinkedQueue<TASK_TYPE> MAILBOX;
   private final ServerConnectionManager MANAGER;
   private final int MAX_BUFFER_SIZE;
+  private final AtomicBoolean PAUSED;
+  private final BufferPool POOL;
+  private final OutboundQueue QUEUE;
+  private final AtomicBoolean SCHEDULED;
   private final AbstractServer SERVER;
-  private final AtomicInteger TYPE;
-  private String name;
+  private volatile Object attachment;
+  private volatile int handle = -1;
+  private volatile String name;
+  private volatile ByteBuffer[] pendingWrites;
+  private volatile Reactor reactor;
+  private volatile int received;
+  private volatile IOException receiveFailure;
+  private volatile boolean receiving;
+  private volatile boolean serving;
 
   public Connection(String name, ServerConnectionManager manager, AbstractServer server, int maxBufferSize) {
     this.CREATED = new AtomicBoolean(false);
     this.CONNECTED = new AtomicBoolean(false);
     this.LISTENING = new AtomicBoolean(false);
     this.ACTIVE = new AtomicBoolean(false);
-    this.TYPE = new AtomicInteger(TASK_TYPE.AVAILABLE.ordinal());
+    this.CHANNEL = new AtomicReference<>();
+    this.MAILBOX = new ConcurrentLinkedQueue<>();
+    this.PAUSED = new AtomicBoolean(false);
+    this.SCHEDULED = new AtomicBoolean(false);
     this.name = name;
     this.MANAGER = manager;
     this.SERVER = server;
     this.MAX_BUFFER_SIZE = maxBufferSize < MINIMUM_BUFFER_SIZE ? DEFAULT_MAX_BUFFER_SIZE : maxBufferSize;
+    this.POOL = BufferPool.getInstance();
+    this.DECODER = new FrameDecoder(manager.getCodec(), this.MAX_BUFFER_SIZE, this.POOL, manager.getRejectedFrames());
+    this.QUEUE = new OutboundQueue(manager.getCodec());
   }
 
   public Connection(String name, ServerConnectionManager manager, AbstractServer server) {
     this(name, manager, server, -1);
   }
 
+  /**
+   *
+   * @return channel of this connection, null once the connection has been closed
+   */
+  /**
+   * Object the server keeps with this connection, such as the state of a handshake. It goes away with the connection.
+   *
+   * @return attachment, null if none was set
+   */
+  public Object getAttachment() {
+    return this.attachment;
+  }
+
+  public SocketChannel getChannel() {
+    return this.CHANNEL.get();
+  }
+
+  /**
+   * Slot of this connection in the connection table of its manager.
+   *
+   * @return handle, -1 until the connection has been added
+   */
+  public int getHandle() {
+    return this.handle;
+  }
+
   public int getMaxBufferSize() {
     return this.MAX_BUFFER_SIZE;
   }
@@ -75,8 +124,31 @@ public class Connection implements Runnable {
     return this.name;
   }
 
-  public TASK_TYPE getTaskType() {
-    return TASK_TYPE.values()[this.TYPE.get()];
+  /**
+   * Datagrams waiting to be written to this connection.
+   *
+   * @return outbound queue
+   */
+  public OutboundQueue getQueue() {
+    return this.QUEUE;
+  }
+
+  /**
+   * Reactor whose selector the channel of this connection is registered with.
+   *
+   * @return reactor, null until the connection has been assigned
+   */
+  public Reactor getReactor() {
+    return this.reactor;
+  }
+
+  /**
+   * Whether part of an earlier batch of datagrams is still waiting for the socket to become writable.
+   *
+   * @return true if there are bytes left to write
+   */
+  public boolean hasPendingWrites() {
+    return this.pendingWrites != null;
   }
 
   public boolean isActive() {
@@ -95,64 +167,117 @@ public class Connection implements Runnable {
     return this.LISTENING.get();
   }
 
+  /**
+   * Whether reads are paused because a queue this connection produces datagrams for is over its high watermark.
+   *
+   * @return true if paused
+   */
+  public boolean isPaused() {
+    return this.PAUSED.get();
+  }
+
+  /**
+   * Queue a readiness event for this connection. Events are handled one at a time in the order they were posted, a
+   * worker is only started if none is draining the mailbox already. The event is never handled on the calling thread,
+   * if the worker pool is full it waits in the mailbox until a worker is free.
+   *
+   * @param event event reported by the selector
+   */
+  public void post(TASK_TYPE event) {
+    this.MAILBOX.add(event);
+    this.schedule();
+  }
+
   @Override
   public void run() {
-    this.ACTIVE.set(true);
+    TASK_TYPE event;
+    boolean drain = true;
+
+    while (drain) {
+      this.ACTIVE.set(true);
+
+      while ((event = this.MAILBOX.poll()) != null)
+        this.handle(event);
+
+      this.ACTIVE.set(false);
+      this.SCHEDULED.set(false);
+
+      // an event posted after the mailbox was found empty but before the flag was cleared did not start a worker
+      drain = !this.MAILBOX.isEmpty() && this.SCHEDULED.compareAndSet(false, true);
+    }
+
+    // this worker is free for a connection that found the pool full
+    MANAGER.retryDeferredConnection();
+  }
+
+  /**
+   * Hand any buffers held by this connection back to the pool. Called once the channel has been closed.
+   */
+  public void releaseBuffers() {
+    ByteBuffer[] buffers = this.pendingWrites;
+
+    this.pendingWrites = null;
+
+    // a thread blocked in serve() may still be reading into the decoder buffer, it releases the buffer once it stops
+    if (!this.serving)
+      this.DECODER.release();
+
+    if (buffers != null)
+      for (ByteBuffer buffer : buffers)
+        this.POOL.release(buffer);
+  }
+
+  /**
+   * Read from the channel until it is closed. Used by the thread per connection transport, where the channel is in
+   * blocking mode and this runs on a thread of its own. Only the blocking read happens on this thread, the frames read
+   * are handled by a READ event in the mailbox like in the reactor transport, so they are never handled while a write
+   * or a close is in progress. The next read waits until the event has been handled.
+   */
+  public void serve() {
+    SocketChannel channel;
+
+    this.serving = true;
 
     try {
-      SocketChannel channel = MANAGER.getChannel(this.name);
-      ByteBuffer buffer = ByteBuffer.allocate(this.getMaxBufferSize());
-      ConcurrentLinkedDeque<Datagram> list;
-      Datagram data;
-
-      if (this.getTaskType() == TASK_TYPE.READ) {
-        // read from client
-        channel.read(buffer);
-        // flip buffer for reading
-        buffer.flip();
-
-        // retrieve datagram from byte[]
-        data = Datagram.fromBytes(buffer.array());
-
-        if (data.getReceiver().equals(ServerConnectionManager.SERVER_NAME))
-          if (data.getType() == Datagram.DATA_TYPE.UPDATE_ID)
-            SERVER.updateConnectionName(name, data);
-          else
-            SERVER.handleDatagram(data);
-        else
-          // add to queue
-          MANAGER.addDatagramToQueue(data.getReceiver(), data);
-      } else if (this.getTaskType() == TASK_TYPE.WRITE) {
-        list = MANAGER.getDatagrams(this.name);
-
-        if (list != null && list.size() > 0) {
-          // get next in queue
-          data = list.poll();
-
-          // send to client
-          buffer.put(data.getBytes());
-          buffer.flip();
-          channel.write(buffer);
+      while ((channel = this.CHANNEL.get()) != null) {
+        try {
+          this.received = this.DECODER.readFrom(channel);
+        } catch (IOException ex) {
+          this.receiveFailure = ex;
+        }
+
+        this.receiving = true;
+        this.post(TASK_TYPE.READ);
+
+        synchronized (this) {
+          while ((this.receiving || this.PAUSED.get()) && this.CHANNEL.get() != null)
+            this.wait(ServerConnectionManager.POLLING_INTERVAL);
         }
       }
 
-      this.setTaskType(TASK_TYPE.AVAILABLE);
-    } catch (IOException ex) {
-      LOG.log(Level.SEVERE, null, ex);
-      this.ACTIVE.set(false);
-    } catch (DatagramMissingSenderReceiverException ex) {
-      LOG.log(Level.SEVERE, null, ex);
+      // a worker may still be decoding from the buffer when the connection is closed by someone else
+      synchronized (this) {
+        while (this.receiving && this.SCHEDULED.get())
+          this.wait(ServerConnectionManager.POLLING_INTERVAL);
+      }
+    } catch (InterruptedException ex) {
+      // stopped
     }
 
-    this.ACTIVE.set(false);
+    this.DECODER.release();
+    this.serving = false;
+  }
+
+  public void setAttachment(Object attachment) {
+    this.attachment = attachment;
   }
 
   public void setName(String name) {
     this.name = name;
   }
 
-  public void setTaskType(TASK_TYPE type) {
-    this.TYPE.set(type.ordinal());
+  public void setReactor(Reactor reactor) {
+    this.reactor = reactor;
   }
 
   public boolean toggleActive() {
@@ -171,7 +296,264 @@ public class Connection implements Runnable {
     return this.LISTENING.compareAndSet(this.LISTENING.get(), !this.LISTENING.get());
   }
 
+  /**
+   * Take the channel away from this connection, the connection stops handling events once it has no channel.
+   *
+   * @return channel, null if it was detached already
+   */
+  SocketChannel detachChannel() {
+    return this.CHANNEL.getAndSet(null);
+  }
+
+  /**
+   * Stop reading until resumeReading is called. In the reactor transport read interest simply stays off, it is removed
+   * while a read is being handled.
+   *
+   * @return true if reads were not paused already
+   */
+  boolean pauseReading() {
+    return this.PAUSED.compareAndSet(false, true);
+  }
+
+  /**
+   * Start reading again after pauseReading.
+   *
+   * @return true if reads were paused
+   */
+  boolean resumeReading() {
+    SocketChannel channel;
+
+    if (!this.PAUSED.compareAndSet(true, false))
+      return false;
+
+    channel = this.CHANNEL.get();
+
+    if (this.reactor != null) {
+      if (channel != null)
+        this.reactor.resumeReads(channel);
+    } else
+      synchronized (this) {
+        this.notifyAll();
+      }
+
+    return true;
+  }
+
+  /**
+   * Start a worker for the mailbox unless one is draining it already.
+   */
+  void schedule() {
+    if (!this.SCHEDULED.compareAndSet(false, true))
+      return;
+
+    try {
+      MANAGER.getWorkers().startTask(this);
+    } catch (RejectedExecutionException ex) {
+      this.SCHEDULED.set(false);
+      MANAGER.deferConnection(this);
+    }
+  }
+
+  void setChannel(SocketChannel channel) {
+    this.CHANNEL.set(channel);
+  }
+
+  void setHandle(int handle) {
+    this.handle = handle;
+  }
+
+  /**
+   * Encode as many queued datagrams as fit into MAX_WRITE_BUFFERS buffers so that they can be sent with one gathering
+   * write.
+   *
+   * @param list queued datagrams
+   * <p>
+   * @return buffers ready to be written
+   */
+  private ByteBuffer[] encodeBatch(OutboundQueue list) {
+    DatagramCodec codec = MANAGER.getCodec();
+    ArrayList<ByteBuffer> buffers = new ArrayList<>();
+    ByteBuffer buffer = this.POOL.acquire(this.getMaxBufferSize());
+    Datagram data;
+    int count = 0;
+
+    while (buffers.size() < MAX_WRITE_BUFFERS - 1 && (data = list.poll()) != null) {
+      count++;
+
+      if (!codec.encode(data, buffer)) {
+        if (buffer.position() > 0) {
+          buffer.flip();
+          buffers.add(buffer);
+          buffer = this.POOL.acquire(this.getMaxBufferSize());
+        }
+
+        // datagram is larger than a whole buffer
+        if (!codec.encode(data, buffer))
+          buffers.add(ByteBuffer.wrap(codec.encode(data)));
+      }
+    }
+
+    if (buffer.position() > 0) {
+      buffer.flip();
+      buffers.add(buffer);
+    } else
+      this.POOL.release(buffer);
+
+    MANAGER.recordDatagramsSent(count);
+
+    return buffers.toArray(new ByteBuffer[buffers.size()]);
+  }
+
+  /**
+   * Write out what is left of the current batch. A partial write leaves the remaining bytes pending until the socket
+   * is writable again.
+   *
+   * @param channel channel to write to
+   * <p>
+   * @return true if nothing is left pending
+   * <p>
+   * @throws IOException
+   */
+  private boolean flushPendingWrites(SocketChannel channel) throws IOException {
+    ByteBuffer[] buffers = this.pendingWrites;
+
+    if (buffers == null)
+      return true;
+
+    while (buffers.length > 0 && buffers[buffers.length - 1].hasRemaining()) {
+      long written = channel.write(buffers);
+
+      MANAGER.recordWrite();
+
+      if (written == 0)
+        return false;
+    }
+
+    for (ByteBuffer buffer : buffers)
+      this.POOL.release(buffer);
+
+    this.pendingWrites = null;
+
+    return true;
+  }
+
+  private void handle(TASK_TYPE event) {
+    SocketChannel channel = this.CHANNEL.get();
+    OutboundQueue congested = null, target;
+    DatagramView data;
+
+    // connection has been closed while the event was queued
+    if (channel == null) {
+      if (event == TASK_TYPE.READ && this.serving)
+        this.received();
+
+      return;
+    }
+
+    try {
+      if (event == TASK_TYPE.READ) {
+        // read from client, a read may hold any number of datagrams including a partial one. A serving thread has
+        // read already
+        int read = this.serving ? this.takeReceived() : this.DECODER.readFrom(channel);
+
+        while ((data = this.DECODER.nextView()) != null)
+          if ((target = this.receive(data)) != null && target.isAboveHighWatermark())
+            congested = target;
+
+        // responses of the server end up in the queue of this connection
+        if (this.QUEUE.isAboveHighWatermark())
+          congested = this.QUEUE;
+
+        if (read < 0)
+          MANAGER.closeConnection(this);
+        else if (congested != null)
+          // stop producing until the peer has caught up
+          MANAGER.pauseReads(this, congested);
+        else if (this.reactor != null)
+          this.reactor.resumeReads(channel);
+      } else if (event == TASK_TYPE.WRITE) {
+        // keep sending until the queue is drained or the socket cannot take any more
+        while (this.flushPendingWrites(channel) && !this.QUEUE.isEmpty())
+          this.pendingWrites = this.encodeBatch(this.QUEUE);
+
+        // write interest stays off once the queue has drained
+        MANAGER.updateWriteInterest(this);
+      }
+    } catch (IOException ex) {
+      LOG.log(Level.SEVERE, null, ex);
+      MANAGER.closeConnection(this);
+    } finally {
+      if (event == TASK_TYPE.READ && this.serving)
+        this.received();
+    }
+  }
+
+  /**
+   * Hand a datagram to the server or queue it for its receiver. The datagram is only copied out of the receive buffer
+   * once it is known to be wanted.
+   *
+   * @param data view of a received datagram, only valid during this call
+   * <p>
+   * @return queue the datagram was added to, null if it was handed to the server or its receiver is not connected
+   */
+  private OutboundQueue receive(DatagramView data) {
+    Connection receiver;
+
+    if (data.isReceiver(ServerConnectionManager.SERVER_NAME)) {
+      if (data.getType() == Datagram.DATA_TYPE.UPDATE_ID)
+        SERVER.updateConnectionName(this, data.toDatagram());
+      else if (SERVER.accepts(data))
+        SERVER.handleDatagram(this, data.toDatagram());
+      else
+        MANAGER.getRejectedFrames().record(DatagramCodec.FRAME_STATUS.NOT_ACCEPTED);
+
+      return null;
+    }
+
+    receiver = MANAGER.getConnection(data.getReceiver());
+
+    if (receiver == null) {
+      // held until a connection takes the name, refused if nothing more can be held
+      if (MANAGER.offerDatagram(data.getReceiver(), data.toDatagram()) == null)
+        MANAGER.getRejectedFrames().record(DatagramCodec.FRAME_STATUS.NOT_ACCEPTED);
+
+      return null;
+    }
+
+    MANAGER.addDatagramToQueue(receiver, data.toDatagram());
+
+    return receiver.getQueue();
+  }
+
+  /**
+   * Let the serving thread read again.
+   */
+  private void received() {
+    synchronized (this) {
+      this.receiving = false;
+      this.notifyAll();
+    }
+  }
+
+  /**
+   * Result of the read made by the serving thread.
+   *
+   * @return number of bytes read, -1 at end of stream
+   * <p>
+   * @throws IOException if the read failed
+   */
+  private int takeReceived() throws IOException {
+    IOException failure = this.receiveFailure;
+
+    if (failure != null) {
+      this.receiveFailure = null;
+      throw failure;
+    }
+
+    return this.received;
+  }
+
   public static enum TASK_TYPE {
-    READ, WRITE, AVAILABLE
+    READ, WRITE
   }
 }
@@ -0,0 +1,183 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019 Hassan Khan, Kent Tsuenchy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.hkkt.communication;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Connections of a ServerConnectionManager indexed by an int handle, the slot of the connection in the table. Each
+ * connection holds its own channel and outbound queue, so once a name has been resolved to a handle everything else is
+ * one array index away.
+ * <p>
+ * Lookups do not lock. Adding, removing and renaming connections is serialized so that a name always maps to the
+ * connection it belongs to, during a rename both names map to the same handle until the old one is dropped. Freed
+ * slots are reused oldest first so that a stale handle is unlikely to reach a newer connection.
+ *
+ * @author Kent Tsuenchy
+ */
+class ConnectionTable {
+  public static final int DEFAULT_CAPACITY = 64;
+  private final ArrayDeque<Integer> FREE_SLOTS;
+  private final ConcurrentHashMap<String, Integer> NAMES;
+  private volatile int next = 0;
+  private volatile int size = 0;
+  private volatile AtomicReferenceArray<Connection> slots;
+
+  ConnectionTable() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  ConnectionTable(int capacity) {
+    this.FREE_SLOTS = new ArrayDeque<>();
+    this.NAMES = new ConcurrentHashMap<>();
+    this.slots = new AtomicReferenceArray<>(Math.max(1, capacity));
+  }
+
+  /**
+   * Add a connection under its current name.
+   *
+   * @param connection connection to add
+   * <p>
+   * @return handle of the connection, -1 if the name is taken
+   */
+  synchronized int add(Connection connection) {
+    Integer free = this.FREE_SLOTS.poll();
+    int handle = free == null ? this.next : free;
+
+    if (this.NAMES.putIfAbsent(connection.getName(), handle) != null) {
+      if (free != null)
+        this.FREE_SLOTS.addFirst(free);
+
+      return -1;
+    }
+
+    if (free == null) {
+      if (handle == this.slots.length())
+        this.grow();
+
+      this.next++;
+    }
+
+    connection.setHandle(handle);
+    this.slots.set(handle, connection);
+    this.size++;
+
+    return handle;
+  }
+
+  /**
+   * Run an action for every connection in the table, connections added or removed meanwhile may or may not be seen.
+   *
+   * @param action action to run
+   */
+  void forEach(Consumer<Connection> action) {
+    AtomicReferenceArray<Connection> table = this.slots;
+    Connection connection;
+
+    for (int i = 0; i < table.length(); i++)
+      if ((connection = table.get(i)) != null)
+        action.accept(connection);
+  }
+
+  Connection get(int handle) {
+    AtomicReferenceArray<Connection> table = this.slots;
+
+    return handle >= 0 && handle < table.length() ? table.get(handle) : null;
+  }
+
+  Connection get(String name) {
+    return this.get(this.lookup(name));
+  }
+
+  /**
+   *
+   * @param name connection name
+   * <p>
+   * @return handle of the connection, -1 if there is no connection with the name
+   */
+  int lookup(String name) {
+    Integer handle = this.NAMES.get(name);
+
+    return handle == null ? -1 : handle;
+  }
+
+  /**
+   * Take a connection out of the table and free its slot.
+   *
+   * @param connection connection to remove
+   * <p>
+   * @return true if the connection was in the table
+   */
+  synchronized boolean remove(Connection connection) {
+    int handle = connection.getHandle();
+
+    if (this.get(handle) != connection)
+      return false;
+
+    this.slots.set(handle, null);
+    this.NAMES.remove(connection.getName(), handle);
+    this.FREE_SLOTS.add(handle);
+    this.size--;
+
+    return true;
+  }
+
+  /**
+   * Move a connection to a new name. The new name is taken before the old one is dropped, so a datagram routed by
+   * either name during the rename still reaches the connection.
+   *
+   * @param connection connection to rename
+   * @param newName new name
+   * <p>
+   * @return true if renamed, false if the connection is not in the table or the name is taken
+   */
+  synchronized boolean rename(Connection connection, String newName) {
+    int handle = connection.getHandle();
+    String oldName = connection.getName();
+
+    if (this.get(handle) != connection || this.NAMES.putIfAbsent(newName, handle) != null)
+      return false;
+
+    connection.setName(newName);
+    this.NAMES.remove(oldName, handle);
+
+    return true;
+  }
+
+  int size() {
+    return this.size;
+  }
+
+  private void grow() {
+    AtomicReferenceArray<Connection> table = new AtomicReferenceArray<>(this.slots.length() * 2);
+
+    for (int i = 0; i < this.slots.length(); i++)
+      table.set(i, this.slots.get(i));
+
+    this.slots = table;
+  }
+}
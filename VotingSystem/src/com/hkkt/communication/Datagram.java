@@ -25,59 +25,65 @@ package com.hkkt.communication;
 
 import java.io.UnsupportedEncodingException;
 import java.time.Instant;
-import java.util.Objects;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  *
  * @author Kent Tsuenchy
  */
-public class Datagram {
+public class Datagram implements DatagramView {
   public static final int MAX_DATA_LENGTH = 300;
+  public static final long NO_CORRELATION_ID = 0;
   public static final String STRING_ENCODING = "ISO-8859-1";
   protected static final int MAX_TIMESTAMP_LENGTH = 24;
   protected static final int MAX_TYPE_LENGTH = 15;
   protected static final int MAX_TYPE_OTHER_LENGTH = 25;
 
+  private static final DatagramCodec FIXED_WIDTH_CODEC = new FixedWidthDatagramCodec();
+  private static final AtomicLong NEXT_ID = new AtomicLong(0);
+
+  /**
+   * Decode a datagram in the fixed width format.
+   *
+   * @param bytes encoded datagram
+   * <p>
+   * @return decoded datagram
+   * <p>
+   * @throws UnsupportedEncodingException
+   * @throws DatagramMissingSenderReceiverException
+   * @see FixedWidthDatagramCodec
+   */
   public static Datagram fromBytes(byte[] bytes) throws UnsupportedEncodingException, DatagramMissingSenderReceiverException {
-    int pad = ServerConnectionManager.MAX_NAME_LENGTH;
-    String temp = new String(bytes, STRING_ENCODING);
-    String sender;
-    String receiver;
-    DATA_TYPE type;
-    String otherType;
-    Instant timestamp;
-    byte[] data;
-
-    sender = temp.substring(0, pad).trim();
-    receiver = temp.substring(pad, pad * 2).trim();
-    type = DATA_TYPE.valueOf(temp.substring(pad * 2, pad * 2 + MAX_TYPE_LENGTH).trim());
-    pad = pad * 2 + MAX_TYPE_LENGTH;
-    otherType = temp.substring(pad, pad + MAX_TYPE_OTHER_LENGTH).trim();
-    pad += MAX_TYPE_OTHER_LENGTH;
-    timestamp = Instant.parse(temp.substring(pad, pad + MAX_TIMESTAMP_LENGTH).trim());
-    pad += MAX_TIMESTAMP_LENGTH;
-    data = temp.substring(pad).getBytes(STRING_ENCODING);
-
-    return new Datagram(type, otherType, sender, receiver, data, timestamp);
+    return FIXED_WIDTH_CODEC.decode(bytes);
   }
 
+  protected final long CORRELATION_ID;
   protected final byte[] DATA;
+  protected final long ID;
   protected final String RECEIVER_ID;
   protected final String SENDER_ID;
   protected final Instant TIMESTAMP;
   protected final DATA_TYPE TYPE;
   protected final String TYPE_OTHER;
 
-  public Datagram(DATA_TYPE type, String otherType, String sender, String receiver, byte[] data, Instant timestamp) throws DatagramMissingSenderReceiverException {
-    if (sender == null || receiver == null)
-      throw new DatagramMissingSenderReceiverException();
+  /**
+   *
+   * @param type
+   * @param otherType
+   * @param sender
+   * @param receiver
+   * @param data
+   * @param timestamp
+   * @param correlationId id a reply to this datagram carries as well, NO_CORRELATION_ID if no reply is waited for
+   * @throws DatagramMissingSenderReceiverException
+   */
+  public Datagram(DATA_TYPE type, String otherType, String sender, String receiver, byte[] data, Instant timestamp, long correlationId) throws DatagramMissingSenderReceiverException {
+    this(NEXT_ID.getAndIncrement(), correlationId, type, otherType, sender, receiver, data, timestamp);
+  }
 
-    this.TYPE = type;
-    this.TYPE_OTHER = otherType == null ? "" : otherType;
-    this.SENDER_ID = sender;
-    this.RECEIVER_ID = receiver;
-    this.DATA = data == null ? new byte[0] : data;
-    this.TIMESTAMP = timestamp;
+  public Datagram(DATA_TYPE type, String otherType, String sender, String receiver, byte[] data, Instant timestamp) throws DatagramMissingSenderReceiverException {
+    this(type, otherType, sender, receiver, data, timestamp, NO_CORRELATION_ID);
   }
 
   public Datagram(DATA_TYPE type, String otherType, String sender, String receiver, byte[] data) throws DatagramMissingSenderReceiverException {
@@ -96,6 +102,39 @@ public class Datagram {
     this(DATA_TYPE.OTHER, otherType, sender, receiver, null, Instant.now());
   }
 
+  /**
+   * Constructs a datagram with the id of an existing one, used by subclasses wrapping a datagram.
+   *
+   * @param id id of the wrapped datagram
+   * @param correlationId correlation id of the wrapped datagram
+   * @param type
+   * @param otherType
+   * @param sender
+   * @param receiver
+   * @param data
+   * @param timestamp
+   * @throws DatagramMissingSenderReceiverException
+   */
+  protected Datagram(long id, long correlationId, DATA_TYPE type, String otherType, String sender, String receiver, byte[] data, Instant timestamp) throws DatagramMissingSenderReceiverException {
+    if (sender == null || receiver == null)
+      throw new DatagramMissingSenderReceiverException();
+
+    this.CORRELATION_ID = correlationId;
+    this.ID = id;
+    this.TYPE = type;
+    this.TYPE_OTHER = otherType == null ? "" : otherType;
+    this.SENDER_ID = sender;
+    this.RECEIVER_ID = receiver;
+    this.DATA = data == null ? new byte[0] : data;
+    this.TIMESTAMP = timestamp;
+  }
+
+  /**
+   * Datagrams are equal when they have the same id, the id is unique to every datagram constructed in this process.
+   *
+   * @param o
+   * @return
+   */
   @Override
   public boolean equals(Object o) {
     boolean equal = false;
@@ -103,52 +142,78 @@ public class Datagram {
     if (o instanceof Datagram) {
       Datagram d = (Datagram) o;
 
-      equal = this.hashCode() == d.hashCode();
+      equal = this.ID == d.ID;
     }
 
     return equal;
   }
 
+  /**
+   * Encode this datagram in the fixed width format.
+   *
+   * @return encoded datagram
+   * <p>
+   * @throws UnsupportedEncodingException
+   * @throws IllegalArgumentException if a field is longer than the format has room for
+   * @see FixedWidthDatagramCodec
+   */
   public byte[] getBytes() throws UnsupportedEncodingException {
-    int pad = ServerConnectionManager.MAX_NAME_LENGTH;
-    String temp;
-
-    temp = String.format("%-" + pad + "s%-" + pad + "s", this.SENDER_ID, this.RECEIVER_ID);
-    temp += String.format("%-" + MAX_TYPE_LENGTH + "s", this.TYPE.toString());
-    temp += String.format("%-" + MAX_TYPE_OTHER_LENGTH + "s", this.TYPE_OTHER);
-    temp += String.format("%-" + MAX_TIMESTAMP_LENGTH + "s", this.TIMESTAMP.toString());
-    temp += String.format("%-" + MAX_DATA_LENGTH + "s", new String(this.DATA, STRING_ENCODING));
+    return FIXED_WIDTH_CODEC.encode(this);
+  }
 
-    return temp.getBytes(STRING_ENCODING);
+  @Override
+  public long getCorrelationId() {
+    return this.CORRELATION_ID;
   }
 
+  @Override
   public byte[] getData() {
     return this.DATA;
   }
 
+  public long getId() {
+    return this.ID;
+  }
+
+  @Override
   public String getReceiver() {
     return this.RECEIVER_ID;
   }
 
+  @Override
   public String getSender() {
     return this.SENDER_ID;
   }
 
+  @Override
   public Instant getTimestamp() {
     return this.TIMESTAMP;
   }
 
+  @Override
   public DATA_TYPE getType() {
     return this.TYPE;
   }
 
+  @Override
   public String getTypeOther() {
     return this.TYPE_OTHER;
   }
 
+  /**
+   * Reply to this datagram. The reply keeps the correlation id, so that the sender can match it to its request.
+   *
+   * @param data data of the reply, null to send back the data of this datagram
+   * @param type
+   * @param typeOther
+   * <p>
+   * @return reply addressed to the sender of this datagram
+   * <p>
+   * @throws DatagramMissingSenderReceiverException
+   */
   public Datagram flip(byte[] data, DATA_TYPE type, String typeOther) throws DatagramMissingSenderReceiverException {
     byte[] d = data == null ? this.DATA : data;
-    return new Datagram(type, typeOther, this.RECEIVER_ID, this.SENDER_ID, d);
+    return new Datagram(type, typeOther, this.RECEIVER_ID, this.SENDER_ID, d, Instant.now(), this.CORRELATION_ID);
   }
 
   public Datagram flip(byte[] data, DATA_TYPE type) throws DatagramMissingSenderReceiverException {
@@ -165,17 +230,43 @@ public class Datagram {
 
   @Override
   public int hashCode() {
-    int hash = 7;
-    hash = 13 * hash + Objects.hashCode(this.DATA);
-    hash = 13 * hash + Objects.hashCode(this.RECEIVER_ID);
-    hash = 13 * hash + Objects.hashCode(this.SENDER_ID);
-    hash = 13 * hash + Objects.hashCode(this.TIMESTAMP);
-    hash = 13 * hash + Objects.hashCode(this.TYPE);
-    hash = 13 * hash + Objects.hashCode(this.TYPE_OTHER);
-    return hash;
+    return Long.hashCode(this.ID);
+  }
+
+  @Override
+  public boolean isReceiver(String name) {
+    return this.RECEIVER_ID.equals(name);
+  }
+
+  @Override
+  public boolean isTypeOther(String typeOther) {
+    return this.TYPE_OTHER.equals(typeOther);
+  }
+
+  @Override
+  public Datagram toDatagram() {
+    return this;
   }
 
   public static enum DATA_TYPE {
-    MESSAGE, NOTIFICATION, UPDATE_ID, ERROR, OTHER
+    MESSAGE, NOTIFICATION, UPDATE_ID, ERROR, OTHER;
+
+    private static final HashMap<String, DATA_TYPE> BY_NAME = new HashMap<>();
+
+    static {
+      for (DATA_TYPE type : values())
+        BY_NAME.put(type.name(), type);
+    }
+
+    /**
+     * Look up a type by name without throwing for unknown names the way valueOf does.
+     *
+     * @param name type name
+     * <p>
+     * @return type, null if there is no type with the name
+     */
+    public static DATA_TYPE of(String name) {
+      return name == null ? null : BY_NAME.get(name);
+    }
   }
 }
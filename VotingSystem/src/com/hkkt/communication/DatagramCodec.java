@@ -0,0 +1,149 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019 Hassan Khan, Kent Tsuenchy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.hkkt.communication;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts datagrams to and from the bytes sent over a channel. Both ends of a connection have to use the same codec.
+ *
+ * @author Kent Tsuenchy
+ */
+public interface DatagramCodec {
+  /**
+   * Decode the next frame in the buffer. The buffer position is moved to the end of the frame.
+   *
+   * @param buffer buffer positioned at the start of a frame
+   * <p>
+   * @return decoded datagram
+   * <p>
+   * @throws DatagramMissingSenderReceiverException
+   * @throws IllegalArgumentException if the frame is malformed
+   */
+  public Datagram decode(ByteBuffer buffer) throws DatagramMissingSenderReceiverException;
+
+  public default Datagram decode(byte[] bytes) throws DatagramMissingSenderReceiverException {
+    return this.decode(ByteBuffer.wrap(bytes));
+  }
+
+  /**
+   * Encode a datagram into a frame of its own.
+   *
+   * @param datagram datagram to encode
+   * <p>
+   * @return encoded frame
+   * <p>
+   * @throws IllegalArgumentException if the datagram cannot be encoded in this format
+   */
+  public byte[] encode(Datagram datagram);
+
+  /**
+   * Encode a datagram into the buffer if there is room for it. Nothing is written if the datagram does not fit.
+   *
+   * @param datagram datagram to encode
+   * @param buffer buffer to append the frame to
+   * <p>
+   * @return true if the datagram was written to the buffer
+   * <p>
+   * @throws IllegalArgumentException if the datagram cannot be encoded in this format, nothing is written
+   */
+  public default boolean encode(Datagram datagram, ByteBuffer buffer) {
+    byte[] bytes = this.encode(datagram);
+
+    if (bytes.length > buffer.remaining())
+      return false;
+
+    buffer.put(bytes);
+
+    return true;
+  }
+
+  /**
+   * Number of bytes the datagram takes up once encoded.
+   *
+   * @param datagram datagram to measure
+   * <p>
+   * @return length of the frame in bytes
+   * <p>
+   * @throws IllegalArgumentException if the datagram cannot be encoded in this format
+   */
+  public default int encodedLength(Datagram datagram) {
+    return this.encode(datagram).length;
+  }
+
+  /**
+   * Length of the frame starting at the buffer position, without moving the position.
+   *
+   * @param buffer buffer positioned at the start of a frame
+   * <p>
+   * @return length of the whole frame in bytes, or -1 if not enough of the frame is in the buffer to tell
+   */
+  public int frameLength(ByteBuffer buffer);
+
+  /**
+   * Whether the format carries the correlation id of a datagram. Replies can only be matched to their requests if it
+   * does.
+   *
+   * @return true if decoded datagrams keep the correlation id they were encoded with
+   */
+  public default boolean hasCorrelationId() {
+    return false;
+  }
+
+  /**
+   * Check that the frame starting at the buffer position can be decoded, without decoding it or throwing. Codecs that
+   * cannot tell report every frame as VALID and throw from decode instead.
+   *
+   * @param buffer buffer positioned at the start of a complete frame, the position is not moved
+   * <p>
+   * @return VALID, or why the frame would be rejected
+   */
+  public default FRAME_STATUS validate(ByteBuffer buffer) {
+    return FRAME_STATUS.VALID;
+  }
+
+  /**
+   * Read the next frame as a view. Codecs that can read fields straight out of the buffer return a flyweight that is
+   * only valid until the buffer changes, by default the frame is simply decoded.
+   *
+   * @param buffer buffer positioned at the start of a frame, the position is moved to the end of the frame
+   * @param previous view returned for the previous frame, may be reused
+   * <p>
+   * @return view of the frame
+   * <p>
+   * @throws DatagramMissingSenderReceiverException
+   * @throws IllegalArgumentException if the frame is malformed
+   */
+  public default DatagramView view(ByteBuffer buffer, DatagramView previous) throws DatagramMissingSenderReceiverException {
+    return this.decode(buffer);
+  }
+
+  /**
+   * Outcome of checking a received frame, every status other than VALID is a reason for dropping it.
+   */
+  public static enum FRAME_STATUS {
+    VALID, BAD_FRAME_LENGTH, UNSUPPORTED_VERSION, UNKNOWN_TYPE, FIELD_OVERRUN, LENGTH_MISMATCH, BAD_TIMESTAMP, MALFORMED,
+    NOT_ACCEPTED
+  }
+}
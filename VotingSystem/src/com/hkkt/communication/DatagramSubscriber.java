@@ -0,0 +1,107 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019 Hassan Khan, Kent Tsuenchy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.hkkt.communication;
+
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Subscriber that hands received datagrams to a handler one at a time. The next datagram is only requested once the
+ * handler has returned, so a slow handler makes datagrams wait in the publisher's buffer instead of blocking the
+ * thread reading the socket.
+ *
+ * @author Kent Tsuenchy
+ */
+public class DatagramSubscriber implements Flow.Subscriber<Datagram> {
+  private static final Logger LOG = Logger.getLogger(DatagramSubscriber.class.getName());
+  private final AtomicBoolean CANCELLED;
+  private final Consumer<? super Datagram> HANDLER;
+  private volatile Flow.Subscription subscription;
+
+  /**
+   *
+   * @param handler called with every datagram, never concurrently
+   */
+  public DatagramSubscriber(Consumer<? super Datagram> handler) {
+    this.CANCELLED = new AtomicBoolean(false);
+    this.HANDLER = handler;
+  }
+
+  /**
+   * Stop receiving datagrams. Datagrams already being handled are not interrupted.
+   */
+  public void cancel() {
+    Flow.Subscription s = this.subscription;
+
+    this.CANCELLED.set(true);
+
+    if (s != null)
+      s.cancel();
+  }
+
+  public boolean isCancelled() {
+    return this.CANCELLED.get();
+  }
+
+  @Override
+  public void onComplete() {
+    this.subscription = null;
+  }
+
+  @Override
+  public void onError(Throwable throwable) {
+    LOG.log(Level.SEVERE, null, throwable);
+    this.subscription = null;
+  }
+
+  @Override
+  public void onNext(Datagram datagram) {
+    try {
+      this.HANDLER.accept(datagram);
+    } catch (RuntimeException ex) {
+      LOG.log(Level.SEVERE, null, ex);
+    } finally {
+      Flow.Subscription s = this.subscription;
+
+      if (s != null && !this.CANCELLED.get())
+        s.request(1);
+    }
+  }
+
+  @Override
+  public void onSubscribe(Flow.Subscription subscription) {
+    // a subscriber can only be subscribed once
+    if (this.subscription != null || this.CANCELLED.get()) {
+      subscription.cancel();
+
+      return;
+    }
+
+    this.subscription = subscription;
+    subscription.request(1);
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019 Hassan Khan, Kent Tsuenchy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.hkkt.communication;
+
+import java.time.Instant;
+
+/**
+ * Read-only access to the fields of a datagram. A Datagram is a view of itself, a view returned by a FrameDecoder may
+ * instead read its fields straight out of the receive buffer, in which case it is only valid until the decoder moves on
+ * to the next frame. Use toDatagram to keep a datagram around after that.
+ *
+ * @author Kent Tsuenchy
+ */
+public interface DatagramView {
+  /**
+   * Id that ties a reply to the request it answers.
+   *
+   * @return correlation id, Datagram.NO_CORRELATION_ID if there is none
+   */
+  public long getCorrelationId();
+
+  public byte[] getData();
+
+  public String getReceiver();
+
+  public String getSender();
+
+  public Instant getTimestamp();
+
+  public Datagram.DATA_TYPE getType();
+
+  public String getTypeOther();
+
+  /**
+   * Compare the receiver without materializing it.
+   *
+   * @param name name to compare with
+   * <p>
+   * @return true if the datagram is addressed to the name
+   */
+  public boolean isReceiver(String name);
+
+  /**
+   * Compare the other type without materializing it.
+   *
+   * @param typeOther type to compare with
+   * <p>
+   * @return true if the other type of the datagram is the given type
+   */
+  public boolean isTypeOther(String typeOther);
+
+  /**
+   * Datagram holding its own copy of the fields, safe to keep after the view is no longer valid.
+   *
+   * @return datagram with the same fields
+   */
+  public Datagram toDatagram();
+}
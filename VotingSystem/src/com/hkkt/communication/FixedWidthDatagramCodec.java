@@ -0,0 +1,273 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019 Hassan Khan, Kent Tsuenchy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.hkkt.communication;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+
+/**
+ * Original wire format. Every field is padded with spaces to a fixed width and the whole frame is an ISO-8859-1
+ * string, so a frame is always FRAME_LENGTH bytes. The data is preceded by its length so that the padding is not taken
+ * for data, and the timestamp is sent to the millisecond. A datagram with a field longer than its width cannot be sent
+ * in this format, larger data such as a session handshake needs the binary format. There is no correlation id either,
+ * so replies cannot be matched to their requests.
+ *
+ * @author Kent Tsuenchy
+ */
+public class FixedWidthDatagramCodec implements DatagramCodec {
+  public static final int DATA_LENGTH_WIDTH = Integer.toString(Datagram.MAX_DATA_LENGTH).length();
+  public static final int FRAME_LENGTH = ServerConnectionManager.MAX_NAME_LENGTH * 2 + Datagram.MAX_TYPE_LENGTH
+    + Datagram.MAX_TYPE_OTHER_LENGTH + Datagram.MAX_TIMESTAMP_LENGTH + DATA_LENGTH_WIDTH + Datagram.MAX_DATA_LENGTH;
+  private static final Charset CHARSET = Charset.forName(Datagram.STRING_ENCODING);
+  private static final Datagram.DATA_TYPE[] DATA_TYPES = Datagram.DATA_TYPE.values();
+  private static final int HEADER_LENGTH = FRAME_LENGTH - Datagram.MAX_DATA_LENGTH;
+  // yyyy-MM-ddTHH:mm:ss, followed by an optional fraction and Z
+  private static final String TIMESTAMP_PATTERN = "dddd-dd-ddTdd:dd:dd";
+
+  @Override
+  public Datagram decode(ByteBuffer buffer) throws DatagramMissingSenderReceiverException {
+    int pad = ServerConnectionManager.MAX_NAME_LENGTH;
+    byte[] bytes;
+    String temp;
+    String sender;
+    String receiver;
+    Datagram.DATA_TYPE type;
+    String otherType;
+    Instant timestamp;
+    int dataLength;
+    byte[] data;
+
+    if (buffer.remaining() < HEADER_LENGTH)
+      throw new IllegalArgumentException("Incomplete datagram frame.");
+
+    bytes = new byte[Math.min(buffer.remaining(), FRAME_LENGTH)];
+    buffer.get(bytes);
+    temp = new String(bytes, CHARSET);
+
+    sender = temp.substring(0, pad).trim();
+    receiver = temp.substring(pad, pad * 2).trim();
+    type = Datagram.DATA_TYPE.of(temp.substring(pad * 2, pad * 2 + Datagram.MAX_TYPE_LENGTH).trim());
+
+    if (type == null)
+      throw new IllegalArgumentException("Unknown datagram type.");
+
+    pad = pad * 2 + Datagram.MAX_TYPE_LENGTH;
+    otherType = temp.substring(pad, pad + Datagram.MAX_TYPE_OTHER_LENGTH).trim();
+    pad += Datagram.MAX_TYPE_OTHER_LENGTH;
+
+    try {
+      timestamp = Instant.parse(temp.substring(pad, pad + Datagram.MAX_TIMESTAMP_LENGTH).trim());
+    } catch (DateTimeParseException ex) {
+      throw new IllegalArgumentException("Malformed datagram timestamp.", ex);
+    }
+
+    pad += Datagram.MAX_TIMESTAMP_LENGTH;
+    dataLength = dataLengthOf(ByteBuffer.wrap(bytes), pad);
+
+    if (dataLength < 0 || pad + DATA_LENGTH_WIDTH + dataLength > bytes.length)
+      throw new IllegalArgumentException("Malformed datagram data length.");
+
+    pad += DATA_LENGTH_WIDTH;
+    data = Arrays.copyOfRange(bytes, pad, pad + dataLength);
+
+    return new Datagram(type, otherType, sender, receiver, data, timestamp);
+  }
+
+  @Override
+  public byte[] encode(Datagram datagram) {
+    int pad = ServerConnectionManager.MAX_NAME_LENGTH;
+    String timestamp = timestampOf(datagram);
+    String temp;
+
+    checkWidths(datagram, timestamp);
+
+    temp = String.format("%-" + pad + "s%-" + pad + "s", datagram.getSender(), datagram.getReceiver());
+    temp += String.format("%-" + Datagram.MAX_TYPE_LENGTH + "s", datagram.getType().toString());
+    temp += String.format("%-" + Datagram.MAX_TYPE_OTHER_LENGTH + "s", datagram.getTypeOther());
+    temp += String.format("%-" + Datagram.MAX_TIMESTAMP_LENGTH + "s", timestamp);
+    temp += String.format("%0" + DATA_LENGTH_WIDTH + "d", datagram.getData().length);
+    temp += String.format("%-" + Datagram.MAX_DATA_LENGTH + "s", new String(datagram.getData(), CHARSET));
+
+    return temp.getBytes(CHARSET);
+  }
+
+  @Override
+  public int encodedLength(Datagram datagram) {
+    checkWidths(datagram, timestampOf(datagram));
+
+    // every field is padded to its maximum width
+    return FRAME_LENGTH;
+  }
+
+  @Override
+  public int frameLength(ByteBuffer buffer) {
+    return buffer.remaining() < FRAME_LENGTH ? -1 : FRAME_LENGTH;
+  }
+
+  /**
+   * Check the type, timestamp and data length fields, the only fields decode can fail on, without decoding the frame.
+   *
+   * @param buffer buffer positioned at the start of a frame, the position is not moved
+   * <p>
+   * @return VALID, or why the frame would be rejected
+   */
+  @Override
+  public FRAME_STATUS validate(ByteBuffer buffer) {
+    int offset = buffer.position() + ServerConnectionManager.MAX_NAME_LENGTH * 2;
+
+    if (buffer.remaining() < HEADER_LENGTH)
+      return FRAME_STATUS.BAD_FRAME_LENGTH;
+
+    if (!isType(buffer, offset, Datagram.MAX_TYPE_LENGTH))
+      return FRAME_STATUS.UNKNOWN_TYPE;
+
+    offset += Datagram.MAX_TYPE_LENGTH + Datagram.MAX_TYPE_OTHER_LENGTH;
+
+    if (!isTimestamp(buffer, offset, Datagram.MAX_TIMESTAMP_LENGTH))
+      return FRAME_STATUS.BAD_TIMESTAMP;
+
+    offset += Datagram.MAX_TIMESTAMP_LENGTH;
+
+    return dataLengthOf(buffer, offset) < 0 ? FRAME_STATUS.MALFORMED : FRAME_STATUS.VALID;
+  }
+
+  /**
+   * Reject a datagram with a field that does not fit its width, it would shift every field after it.
+   *
+   * @param datagram datagram to encode
+   * @param timestamp timestamp as it is encoded
+   * <p>
+   * @throws IllegalArgumentException if a field is too long
+   */
+  private static void checkWidths(Datagram datagram, String timestamp) {
+    if (datagram.getSender().length() > ServerConnectionManager.MAX_NAME_LENGTH || datagram.getReceiver().length() > ServerConnectionManager.MAX_NAME_LENGTH)
+      throw new IllegalArgumentException("Datagram sender or receiver is longer than " + ServerConnectionManager.MAX_NAME_LENGTH + " characters.");
+
+    if (datagram.getTypeOther().length() > Datagram.MAX_TYPE_OTHER_LENGTH)
+      throw new IllegalArgumentException("Datagram type is longer than " + Datagram.MAX_TYPE_OTHER_LENGTH + " characters.");
+
+    if (timestamp.length() > Datagram.MAX_TIMESTAMP_LENGTH)
+      throw new IllegalArgumentException("Datagram timestamp is longer than " + Datagram.MAX_TIMESTAMP_LENGTH + " characters.");
+
+    if (datagram.getData().length > Datagram.MAX_DATA_LENGTH)
+      throw new IllegalArgumentException("Datagram data of " + datagram.getData().length + " bytes is longer than the " + Datagram.MAX_DATA_LENGTH + " bytes of the fixed width format.");
+  }
+
+  /**
+   * Read the data length field.
+   *
+   * @param buffer buffer holding the frame
+   * @param offset start of the field
+   * <p>
+   * @return data length, or -1 if the field is not a length the format allows
+   */
+  private static int dataLengthOf(ByteBuffer buffer, int offset) {
+    int length = 0;
+
+    if (buffer.limit() < offset + DATA_LENGTH_WIDTH)
+      return -1;
+
+    for (int i = offset; i < offset + DATA_LENGTH_WIDTH; i++) {
+      byte digit = buffer.get(i);
+
+      if (digit < '0' || digit > '9')
+        return -1;
+
+      length = length * 10 + digit - '0';
+    }
+
+    return length > Datagram.MAX_DATA_LENGTH ? -1 : length;
+  }
+
+  private static boolean isTimestamp(ByteBuffer buffer, int offset, int width) {
+    int end = trimmedEnd(buffer, offset, width);
+    int position = offset + TIMESTAMP_PATTERN.length();
+
+    if (end - offset < TIMESTAMP_PATTERN.length() + 1 || buffer.get(end - 1) != 'Z')
+      return false;
+
+    for (int i = 0; i < TIMESTAMP_PATTERN.length(); i++) {
+      char expected = TIMESTAMP_PATTERN.charAt(i);
+      byte actual = buffer.get(offset + i);
+
+      if (expected == 'd' ? actual < '0' || actual > '9' : actual != expected)
+        return false;
+    }
+
+    if (position < end - 1 && buffer.get(position++) != '.')
+      return false;
+
+    for (; position < end - 1; position++)
+      if (buffer.get(position) < '0' || buffer.get(position) > '9')
+        return false;
+
+    return true;
+  }
+
+  private static boolean isType(ByteBuffer buffer, int offset, int width) {
+    int end = trimmedEnd(buffer, offset, width);
+
+    for (Datagram.DATA_TYPE type : DATA_TYPES) {
+      String name = type.name();
+      boolean matches = name.length() == end - offset;
+
+      for (int i = 0; matches && i < name.length(); i++)
+        matches = buffer.get(offset + i) == name.charAt(i);
+
+      if (matches)
+        return true;
+    }
+
+    return false;
+  }
+
+  /**
+   * Timestamp to the millisecond, which is what the width of the field has room for.
+   */
+  private static String timestampOf(Datagram datagram) {
+    return datagram.getTimestamp().truncatedTo(ChronoUnit.MILLIS).toString();
+  }
+
+  /**
+   * End of a field once the padding is trimmed off.
+   *
+   * @param buffer buffer holding the field
+   * @param offset start of the field
+   * @param width width of the field
+   * <p>
+   * @return index just past the last character that is not padding
+   */
+  private static int trimmedEnd(ByteBuffer buffer, int offset, int width) {
+    int end = offset + width;
+
+    while (end > offset && (buffer.get(end - 1) & 0xFF) <= ' ')
+      end--;
+
+    return end;
+  }
+}
@@ -0,0 +1,233 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019 Hassan Khan, Kent Tsuenchy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.hkkt.communication;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Incremental decoder for a stream of datagram frames. Bytes read from a channel are accumulated in a buffer owned by
+ * the decoder, so a single read may yield any number of complete frames and a partially received frame is kept until
+ * the rest of it arrives. The buffer is taken from a BufferPool when bytes arrive and handed back once every buffered
+ * frame has been decoded, so idle connections do not hold on to a buffer.
+ * <pre>
+ *  if (decoder.readFrom(channel) &lt; 0)
+ *    // end of stream
+ *
+ *  while ((datagram = decoder.nextFrame()) != null)
+ *    // handle datagram
+ * </pre>
+ * nextView reads frames without decoding them where the codec supports it, the view returned is only valid until the
+ * next call to nextView, nextFrame or readFrom.
+ *
+ * @author Kent Tsuenchy
+ */
+public class FrameDecoder {
+  /**
+   * Largest buffer the pool keeps, a frame never needs more.
+   */
+  public static final int DEFAULT_MAX_FRAME_LENGTH = BufferPool.SIZE_CLASSES[BufferPool.SIZE_CLASSES.length - 1];
+  private static final Logger LOG = Logger.getLogger(FrameDecoder.class.getName());
+  private final DatagramCodec CODEC;
+  private final int INITIAL_CAPACITY;
+  private final int MAX_FRAME_LENGTH;
+  private final BufferPool POOL;
+  private final RejectCounters REJECTS;
+  private ByteBuffer buffer;
+  private DatagramView view;
+
+  /**
+   *
+   * @param codec codec the frames are encoded with
+   * @param initialCapacity size of the buffer taken from the pool
+   * @param maxFrameLength longest frame accepted, the buffer never grows beyond it
+   * @param pool pool to take buffers from
+   * @param rejects counters for dropped frames, may be shared between decoders
+   */
+  public FrameDecoder(DatagramCodec codec, int initialCapacity, int maxFrameLength, BufferPool pool, RejectCounters rejects) {
+    this.CODEC = codec;
+    this.INITIAL_CAPACITY = initialCapacity;
+    this.MAX_FRAME_LENGTH = Math.max(initialCapacity, maxFrameLength);
+    this.POOL = pool;
+    this.REJECTS = rejects;
+    // buffer is only held while there are bytes in it, and kept ready for reading frames out of it
+    this.buffer = null;
+    this.view = null;
+  }
+
+  public FrameDecoder(DatagramCodec codec, int initialCapacity, BufferPool pool, RejectCounters rejects) {
+    this(codec, initialCapacity, DEFAULT_MAX_FRAME_LENGTH, pool, rejects);
+  }
+
+  public FrameDecoder(DatagramCodec codec, int initialCapacity, BufferPool pool) {
+    this(codec, initialCapacity, pool, new RejectCounters());
+  }
+
+  public FrameDecoder(DatagramCodec codec, int initialCapacity) {
+    this(codec, initialCapacity, BufferPool.getInstance());
+  }
+
+  /**
+   * Number of bytes received that are not part of a decoded frame yet.
+   *
+   * @return number of buffered bytes
+   */
+  public int getBufferedBytes() {
+    return this.buffer == null ? 0 : this.buffer.remaining();
+  }
+
+  public RejectCounters getRejects() {
+    return this.REJECTS;
+  }
+
+  /**
+   * Decode the next complete frame in the buffer. Frames that are complete but cannot be decoded are counted and
+   * skipped.
+   *
+   * @return next datagram, or null if there is no complete frame buffered
+   * <p>
+   * @throws IOException if the frame length cannot be determined, the stream cannot be recovered from that point
+   */
+  public Datagram nextFrame() throws IOException {
+    DatagramView next = this.nextView();
+
+    return next == null ? null : next.toDatagram();
+  }
+
+  /**
+   * View of the next complete frame in the buffer. Frames are validated before they are read, frames that are complete
+   * but malformed are counted by reason and skipped.
+   *
+   * @return view of the next frame, valid until the decoder is called again, or null if there is no complete frame
+   * buffered
+   * <p>
+   * @throws IOException if the frame length cannot be determined, the stream cannot be recovered from that point
+   */
+  public DatagramView nextView() throws IOException {
+    if (this.buffer == null)
+      return null;
+
+    while (true) {
+      DatagramCodec.FRAME_STATUS status;
+      int length;
+      int limit = this.buffer.limit();
+      int start = this.buffer.position();
+
+      try {
+        length = this.CODEC.frameLength(this.buffer);
+      } catch (IllegalArgumentException ex) {
+        this.REJECTS.record(DatagramCodec.FRAME_STATUS.BAD_FRAME_LENGTH);
+        throw new IOException("Corrupt datagram stream.", ex);
+      }
+
+      // the length prefix is up to the peer, it must not make the buffer grow before any of the frame arrived
+      if (length > this.MAX_FRAME_LENGTH) {
+        this.REJECTS.record(DatagramCodec.FRAME_STATUS.BAD_FRAME_LENGTH);
+        throw new IOException("Datagram frame of " + length + " bytes exceeds the limit of " + this.MAX_FRAME_LENGTH + " bytes.");
+      }
+
+      if (length < 0 || length > this.buffer.remaining()) {
+        if (!this.buffer.hasRemaining())
+          this.release();
+        else if (length > this.buffer.capacity())
+          this.grow(length);
+
+        return null;
+      }
+
+      // limit reads to this frame so that a bad field length cannot run into the next frame
+      this.buffer.limit(start + length);
+
+      try {
+        status = this.CODEC.validate(this.buffer);
+
+        if (status == DatagramCodec.FRAME_STATUS.VALID)
+          return this.view = this.CODEC.view(this.buffer, this.view);
+
+        // junk is counted rather than logged, a flood of it would otherwise flood the log
+        this.REJECTS.record(status);
+        LOG.log(Level.FINE, "Dropping malformed datagram: {0}.", status);
+      } catch (IllegalArgumentException | DatagramMissingSenderReceiverException ex) {
+        this.REJECTS.record(DatagramCodec.FRAME_STATUS.MALFORMED);
+        LOG.log(Level.FINE, "Dropping malformed datagram.", ex);
+      } finally {
+        this.buffer.limit(limit);
+        this.buffer.position(start + length);
+      }
+    }
+  }
+
+  /**
+   * Read whatever is available from the channel into the buffer.
+   *
+   * @param channel channel to read from
+   * <p>
+   * @return number of bytes read, or -1 if the channel has reached end of stream
+   * <p>
+   * @throws IOException
+   */
+  public int readFrom(ReadableByteChannel channel) throws IOException {
+    int read;
+
+    if (this.buffer == null)
+      this.buffer = this.POOL.acquire(this.INITIAL_CAPACITY);
+    else
+      this.buffer.compact();
+
+    try {
+      if (!this.buffer.hasRemaining()) {
+        this.buffer.flip();
+        this.grow(Math.min(this.buffer.capacity() * 2, this.MAX_FRAME_LENGTH));
+        this.buffer.compact();
+      }
+
+      read = channel.read(this.buffer);
+    } finally {
+      this.buffer.flip();
+    }
+
+    return read;
+  }
+
+  /**
+   * Hand the buffer back to the pool and drop any partially received frame. Called when the channel is closed.
+   */
+  public void release() {
+    this.POOL.release(this.buffer);
+    this.buffer = null;
+  }
+
+  private void grow(int capacity) {
+    ByteBuffer larger = this.POOL.acquire(capacity);
+
+    larger.put(this.buffer);
+    larger.flip();
+
+    this.POOL.release(this.buffer);
+    this.buffer = larger;
+  }
+}
@@ -23,6 +23,7 @@
  */
 package com.hkkt.communication;
 
+import com.hkkt.util.CipherPool;
 import java.security.InvalidKeyException;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
@@ -30,6 +31,7 @@ import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.KeyGenerator;
@@ -41,17 +43,22 @@ import javax.crypto.SecretKey;
  * @author Kent Tsuenchy
  */
 public class KDC {
+  public static final String AES_GCM_ENCRYPTION_STANDARD = "AES/GCM/NoPadding";
   public static final String DES_ENCRYPTION_STANDARD = "DES/ECB/PKCS5Padding";
+  public static final String EC_KEY_AGREEMENT_STANDARD = "X25519";
+  public static final String EC_SIGNATURE_STANDARD = "Ed25519";
   public static final String ENCODING_STANDARD = "ISO-8859-1";
   public static final String RSA_ENCRYPTION_STANDARD = "RSA/ECB/PKCS1Padding";
   public static final String RSA_SIGNATURE_STANDARD = "SHA256withRSA";
-  private static Cipher cipher;
+  private static final CipherPool CIPHERS = CipherPool.getInstance();
+  private static final AtomicLong NEXT_KEY_VERSION = new AtomicLong(0);
   private static KDC instance;
   private static ConcurrentHashMap<String, PublicKey> keys;
   private static PrivateKey privateKey;
   private static PublicKey publicKey;
   private static KeyGenerator secretKeyGen;
   private static ConcurrentHashMap<String, SecretKey> sharedKeys;
+  private static ConcurrentHashMap<String, Long> versions;
 
   public static KDC getInstance() throws NoSuchAlgorithmException {
     if (instance == null)
@@ -63,6 +70,7 @@ public class KDC {
   private KDC() throws NoSuchAlgorithmException {
     keys = new ConcurrentHashMap<>();
     sharedKeys = new ConcurrentHashMap<>();
+    versions = new ConcurrentHashMap<>();
 
     KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
     generator.initialize(2048);
@@ -75,14 +83,31 @@ public class KDC {
   }
 
   public void addKey(String id, byte[] encryptedKey) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException {
-    if (sharedKeys.containsKey(id)) {
-      PublicKey key;
-
-      cipher = Cipher.getInstance(DES_ENCRYPTION_STANDARD);
-      cipher.init(Cipher.UNWRAP_MODE, sharedKeys.get(id));
-      key = (PublicKey) cipher.unwrap(encryptedKey, "RSA", Cipher.PUBLIC_KEY);
+    this.addKey(id, encryptedKey, "RSA");
+  }
 
-      keys.put(id, key);
+  /**
+   * Register the public key of a principal.
+   *
+   * @param id name of the principal
+   * @param encryptedKey public key wrapped with the shared key of the principal
+   * @param algorithm algorithm of the public key, e.g. RSA or XDH
+   * <p>
+   * @throws NoSuchAlgorithmException
+   * @throws NoSuchPaddingException
+   * @throws InvalidKeyException
+   */
+  public void addKey(String id, byte[] encryptedKey, String algorithm) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException {
+    if (sharedKeys.containsKey(id)) {
+      Cipher cipher = CIPHERS.acquire(DES_ENCRYPTION_STANDARD);
+
+      try {
+        cipher.init(Cipher.UNWRAP_MODE, sharedKeys.get(id));
+        keys.put(id, (PublicKey) cipher.unwrap(encryptedKey, algorithm, Cipher.PUBLIC_KEY));
+        versions.put(id, NEXT_KEY_VERSION.incrementAndGet());
+      } finally {
+        CIPHERS.release(cipher);
+      }
     }
   }
 
@@ -93,28 +118,62 @@ public class KDC {
       PublicKey key = keys.get(id);
 
       if (key != null) {
-        cipher = Cipher.getInstance(DES_ENCRYPTION_STANDARD);
-
-        cipher.init(Cipher.WRAP_MODE, sharedKeys.get(requester));
-        encryptedKey = cipher.wrap(key);
+        Cipher cipher = CIPHERS.acquire(DES_ENCRYPTION_STANDARD);
+
+        try {
+          cipher.init(Cipher.WRAP_MODE, sharedKeys.get(requester));
+          encryptedKey = cipher.wrap(key);
+        } finally {
+          CIPHERS.release(cipher);
+        }
       }
     }
 
     return encryptedKey;
   }
 
+  /**
+   * Algorithm of the public key registered for a principal, needed to unwrap the key returned by getKey.
+   *
+   * @param id name of the principal
+   * <p>
+   * @return key algorithm, null if no key is registered
+   */
+  public String getKeyAlgorithm(String id) {
+    PublicKey key = keys.get(id);
+
+    return key == null ? null : key.getAlgorithm();
+  }
+
+  /**
+   * Version of the public key registered for a principal, it changes whenever the key is replaced or removed so that
+   * cached copies of the key can be checked without resolving it again.
+   *
+   * @param id name of the principal
+   * <p>
+   * @return key version, 0 if no key is registered
+   */
+  public long getKeyVersion(String id) {
+    Long version = versions.get(id);
+
+    return version == null ? 0 : version;
+  }
+
   public PublicKey getPublicKey() {
     return publicKey;
   }
 
   public byte[] getSharedKey(String id) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException {
     SecretKey key = secretKeyGen.generateKey();
+    Cipher cipher = CIPHERS.acquire(RSA_ENCRYPTION_STANDARD);
     byte[] encryptedKey;
 
-    cipher = Cipher.getInstance(RSA_ENCRYPTION_STANDARD);
-
-    cipher.init(Cipher.WRAP_MODE, privateKey);
-    encryptedKey = cipher.wrap(key);
+    try {
+      cipher.init(Cipher.WRAP_MODE, privateKey);
+      encryptedKey = cipher.wrap(key);
+    } finally {
+      CIPHERS.release(cipher);
+    }
 
     sharedKeys.put(id, key);
 
@@ -124,5 +183,6 @@ public class KDC {
   public void removeKey(String id) {
     keys.remove(id);
     sharedKeys.remove(id);
+    versions.remove(id);
   }
 }
@@ -0,0 +1,265 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019 Hassan Khan, Kent Tsuenchy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.hkkt.communication;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded queue of datagrams waiting to be written to a connection. The queue is limited both in number of datagrams
+ * and in encoded bytes, offers over either limit are refused.
+ * <p>
+ * Every queued datagram gets a handle that cancels it in constant time, queued datagrams can also be looked up and
+ * cancelled by id. Cancelled entries are skipped when polled and purged in bulk once enough of them pile up.
+ * <p>
+ * Once the queue goes over its high watermark, connections producing datagrams for it are expected to stop reading
+ * (see onDrained). They are resumed once the queue has drained below its low watermark.
+ *
+ * @author Kent Tsuenchy
+ */
+public class OutboundQueue implements Iterable<Datagram> {
+  public static final int DEFAULT_MAX_BYTES = 1 << 20;
+  public static final int DEFAULT_MAX_DATAGRAMS = 1024;
+  public static final int HIGH_WATERMARK_PERCENT = 75;
+  public static final int LOW_WATERMARK_PERCENT = 25;
+  private final AtomicLong BYTES;
+  private final AtomicInteger CANCELLED;
+  private final DatagramCodec CODEC;
+  private final AtomicInteger COUNT;
+  private final ConcurrentLinkedQueue<Handle> DATAGRAMS;
+  private final ConcurrentHashMap<Long, Handle> INDEX;
+  private final long MAX_BYTES;
+  private final int MAX_DATAGRAMS;
+  private final ConcurrentLinkedQueue<Runnable> WAITERS;
+
+  public OutboundQueue(DatagramCodec codec) {
+    this(codec, DEFAULT_MAX_DATAGRAMS, DEFAULT_MAX_BYTES);
+  }
+
+  /**
+   *
+   * @param codec codec used to measure the encoded size of datagrams
+   * @param maxDatagrams maximum number of queued datagrams
+   * @param maxBytes maximum number of queued bytes
+   */
+  public OutboundQueue(DatagramCodec codec, int maxDatagrams, long maxBytes) {
+    this.BYTES = new AtomicLong(0);
+    this.CANCELLED = new AtomicInteger(0);
+    this.CODEC = codec;
+    this.COUNT = new AtomicInteger(0);
+    this.DATAGRAMS = new ConcurrentLinkedQueue<>();
+    this.INDEX = new ConcurrentHashMap<>();
+    this.MAX_BYTES = maxBytes;
+    this.MAX_DATAGRAMS = maxDatagrams;
+    this.WAITERS = new ConcurrentLinkedQueue<>();
+  }
+
+  /**
+   * Cancel a queued datagram.
+   *
+   * @param id id of the datagram
+   * <p>
+   * @return true if the datagram was still queued
+   */
+  public boolean cancel(long id) {
+    Handle handle = this.INDEX.get(id);
+
+    return handle != null && handle.cancel();
+  }
+
+  /**
+   * Drop all queued datagrams and resume anything waiting for the queue to drain.
+   */
+  public void clear() {
+    Datagram data = this.poll();
+
+    while (data != null)
+      data = this.poll();
+
+    this.releaseWaiters();
+  }
+
+  public long getBytes() {
+    return this.BYTES.get();
+  }
+
+  /**
+   *
+   * @param id id of the datagram
+   * <p>
+   * @return the handle of the queued datagram, null if it is not queued
+   */
+  public Handle getHandle(long id) {
+    return this.INDEX.get(id);
+  }
+
+  public boolean isAboveHighWatermark() {
+    return this.COUNT.get() * 100L > this.MAX_DATAGRAMS * (long) HIGH_WATERMARK_PERCENT || this.BYTES.get() * 100 > this.MAX_BYTES * HIGH_WATERMARK_PERCENT;
+  }
+
+  public boolean isBelowLowWatermark() {
+    return this.COUNT.get() * 100L <= this.MAX_DATAGRAMS * (long) LOW_WATERMARK_PERCENT && this.BYTES.get() * 100 <= this.MAX_BYTES * LOW_WATERMARK_PERCENT;
+  }
+
+  public boolean isEmpty() {
+    return this.COUNT.get() == 0;
+  }
+
+  @Override
+  public Iterator<Datagram> iterator() {
+    return this.DATAGRAMS.stream().filter(Handle::isQueued).map(Handle::getDatagram).iterator();
+  }
+
+  /**
+   * Queue a datagram unless that would take the queue over one of its limits.
+   *
+   * @param data datagram to queue
+   * <p>
+   * @return handle of the queued datagram, null if it was refused
+   */
+  public Handle offer(Datagram data) {
+    int length = this.CODEC.encodedLength(data);
+    // reserve room first, concurrent offers may together go past a limit otherwise
+    int count = this.COUNT.incrementAndGet();
+    long bytes = this.BYTES.addAndGet(length);
+    Handle handle;
+
+    // a datagram larger than the byte limit is still let through if it is the only one queued
+    if (count > this.MAX_DATAGRAMS || bytes > this.MAX_BYTES && count > 1) {
+      this.COUNT.decrementAndGet();
+      this.BYTES.addAndGet(-length);
+
+      return null;
+    }
+
+    handle = new Handle(this, data, length);
+    this.INDEX.put(data.getId(), handle);
+    this.DATAGRAMS.add(handle);
+
+    return handle;
+  }
+
+  /**
+   * Run a task once the queue has drained below its low watermark, right away if it already has.
+   *
+   * @param task task to run, usually resuming reads of a connection that was producing for this queue
+   */
+  public void onDrained(Runnable task) {
+    this.WAITERS.add(task);
+
+    // the queue may have drained before the task was added
+    if (this.isBelowLowWatermark())
+      this.releaseWaiters();
+  }
+
+  public Datagram poll() {
+    Handle handle;
+
+    while ((handle = this.DATAGRAMS.poll()) != null)
+      if (handle.DONE.compareAndSet(false, true)) {
+        this.release(handle);
+
+        return handle.DATA;
+      }
+
+    return null;
+  }
+
+  public boolean remove(Datagram data) {
+    return this.cancel(data.getId());
+  }
+
+  public int size() {
+    return this.COUNT.get();
+  }
+
+  private void cancelled(Handle handle) {
+    this.release(handle);
+
+    // cancelled handles stay linked until polled, purge them if the queue is not draining
+    if (this.CANCELLED.incrementAndGet() > this.MAX_DATAGRAMS) {
+      this.CANCELLED.set(0);
+      this.DATAGRAMS.removeIf(h -> !h.isQueued());
+    }
+  }
+
+  private void release(Handle handle) {
+    this.INDEX.remove(handle.DATA.getId(), handle);
+    this.COUNT.decrementAndGet();
+    this.BYTES.addAndGet(-handle.LENGTH);
+
+    if (!this.WAITERS.isEmpty() && this.isBelowLowWatermark())
+      this.releaseWaiters();
+  }
+
+  private void releaseWaiters() {
+    Runnable waiter;
+
+    while ((waiter = this.WAITERS.poll()) != null)
+      waiter.run();
+  }
+
+  /**
+   * Reference to a queued datagram.
+   */
+  public static final class Handle {
+    private final Datagram DATA;
+    private final AtomicBoolean DONE;
+    private final int LENGTH;
+    private final OutboundQueue QUEUE;
+
+    private Handle(OutboundQueue queue, Datagram data, int length) {
+      this.DATA = data;
+      this.DONE = new AtomicBoolean(false);
+      this.LENGTH = length;
+      this.QUEUE = queue;
+    }
+
+    /**
+     * Take the datagram out of its queue if it has not been written yet.
+     *
+     * @return true if the datagram was cancelled, false if it was already polled or cancelled
+     */
+    public boolean cancel() {
+      boolean cancelled = this.DONE.compareAndSet(false, true);
+
+      if (cancelled)
+        this.QUEUE.cancelled(this);
+
+      return cancelled;
+    }
+
+    public Datagram getDatagram() {
+      return this.DATA;
+    }
+
+    public boolean isQueued() {
+      return !this.DONE.get();
+    }
+  }
+}
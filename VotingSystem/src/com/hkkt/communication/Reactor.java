@@ -0,0 +1,282 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019 Hassan Khan, Kent Tsuenchy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.hkkt.communication;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Selector loop for a share of the connections of a ServerConnectionManager. Each reactor owns its own selector and
+ * the selection state of the connections assigned to it, readiness events are posted to the mailbox of the connection.
+ * <p>
+ * Registrations and interest changes are queued with execute() and applied by the reactor thread between selects,
+ * since they would otherwise block while a select is in progress.
+ *
+ * @author Kent Tsuenchy
+ */
+public class Reactor implements Runnable {
+  private static final Logger LOG = Logger.getLogger(Reactor.class.getName());
+  private final AtomicInteger LOAD;
+  private final ServerConnectionManager MANAGER;
+  private final ServerConnectionManager.SELECT_MODE MODE;
+  private final ConcurrentLinkedQueue<Runnable> PENDING_OPERATIONS;
+  private final Selector SELECTOR;
+  private final AtomicLong WAKEUPS;
+
+  public Reactor(ServerConnectionManager manager, ServerConnectionManager.SELECT_MODE mode) throws IOException {
+    this.LOAD = new AtomicInteger(0);
+    this.MANAGER = manager;
+    this.MODE = mode;
+    this.PENDING_OPERATIONS = new ConcurrentLinkedQueue<>();
+    this.SELECTOR = Selector.open();
+    this.WAKEUPS = new AtomicLong(0);
+  }
+
+  /**
+   * Close the selector. Channels registered with this reactor are not closed.
+   */
+  public void close() {
+    try {
+      this.SELECTOR.close();
+    } catch (IOException ex) {
+      // TODO log this to log file
+      LOG.log(Level.WARNING, null, ex);
+    }
+  }
+
+  /**
+   * Deregister a channel from this reactor.
+   *
+   * @param channel channel to deregister
+   */
+  public void deregister(SocketChannel channel) {
+    // may return null if no key found for given selector
+    SelectionKey key = channel.keyFor(this.SELECTOR);
+
+    if (key != null)
+      key.cancel();
+
+    this.LOAD.decrementAndGet();
+  }
+
+  /**
+   * Run an operation on the reactor thread before its next select.
+   *
+   * @param operation operation to run
+   */
+  public void execute(Runnable operation) {
+    this.PENDING_OPERATIONS.add(operation);
+
+    if (this.MODE == ServerConnectionManager.SELECT_MODE.BLOCKING)
+      this.SELECTOR.wakeup();
+  }
+
+  /**
+   * Number of connections assigned to this reactor.
+   *
+   * @return number of connections
+   */
+  public int getLoad() {
+    return this.LOAD.get();
+  }
+
+  public Selector getSelector() {
+    return this.SELECTOR;
+  }
+
+  /**
+   * Number of times the selector has returned from a select.
+   *
+   * @return number of selector wakeups since start up
+   */
+  public long getWakeups() {
+    return this.WAKEUPS.get();
+  }
+
+  /**
+   * Assign a channel to this reactor. The channel is registered for reads, write interest is only added once there is
+   * something queued for it (see updateWriteInterest).
+   *
+   * @param channel channel in non-blocking mode
+   * @param connection connection handling the channel
+   */
+  public void register(SocketChannel channel, Connection connection) {
+    this.LOAD.incrementAndGet();
+    connection.setReactor(this);
+
+    this.execute(() -> {
+      try {
+        channel.register(this.SELECTOR, SelectionKey.OP_READ, connection);
+        connection.toggleListening();
+      } catch (ClosedChannelException ex) {
+        LOG.log(Level.WARNING, null, ex);
+      }
+    });
+  }
+
+  /**
+   * Register the server channel with this reactor so that new connections are accepted on the reactor thread.
+   *
+   * @param server server channel in non-blocking mode
+   */
+  public void registerAcceptor(ServerSocketChannel server) {
+    this.execute(() -> {
+      try {
+        server.register(this.SELECTOR, SelectionKey.OP_ACCEPT, this.MANAGER);
+      } catch (ClosedChannelException ex) {
+        LOG.log(Level.WARNING, null, ex);
+      }
+    });
+  }
+
+  /**
+   * Turn read interest back on for a channel once its connection has handled the last read event.
+   *
+   * @param channel channel of the connection
+   */
+  public void resumeReads(SocketChannel channel) {
+    this.execute(() -> {
+      SelectionKey key = channel.keyFor(this.SELECTOR);
+
+      if (key != null && key.isValid())
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+    });
+  }
+
+  @Override
+  public void run() {
+    // TODO need to check how to kill thread if required to force quit
+    while (!Thread.currentThread().isInterrupted())
+      try {
+        int readyChannels;
+
+        // registrations and interest changes can only be applied safely while the selector is not selecting
+        this.runPendingOperations();
+
+        if (this.MODE == ServerConnectionManager.SELECT_MODE.POLLING) {
+          Thread.sleep(ServerConnectionManager.POLLING_INTERVAL);
+          readyChannels = this.SELECTOR.selectNow();
+        } else
+          readyChannels = this.SELECTOR.select();
+
+        this.WAKEUPS.incrementAndGet();
+
+        if (readyChannels == 0)
+          continue;
+
+        Set<SelectionKey> selectedKeys = this.SELECTOR.selectedKeys();
+        Iterator<SelectionKey> keyIterator = selectedKeys.iterator();
+
+        while (keyIterator.hasNext()) {
+          SelectionKey key = keyIterator.next();
+          Connection connection;
+
+          keyIterator.remove();
+
+          if (key.attachment() == this.MANAGER) {
+            try {
+              if (key.isAcceptable())
+                this.MANAGER.acceptConnections((ServerSocketChannel) key.channel());
+            } catch (CancelledKeyException ex) {
+              // server channel was closed
+            }
+
+            continue;
+          }
+
+          if (key.attachment() instanceof Connection)
+            connection = (Connection) key.attachment();
+          else {
+            LOG.log(Level.WARNING, "Unrecognized attachment for channel.");
+            continue;
+          }
+
+          try {
+            int readyOps = key.readyOps();
+
+            // stop selecting the ready events until the connection has handled them, otherwise the selector would
+            // keep reporting them while the task is queued or running. The connection turns interest back on
+            key.interestOps(key.interestOps() & ~readyOps);
+
+            if ((readyOps & SelectionKey.OP_READ) != 0)
+              connection.post(Connection.TASK_TYPE.READ);
+
+            if ((readyOps & SelectionKey.OP_WRITE) != 0)
+              connection.post(Connection.TASK_TYPE.WRITE);
+          } catch (CancelledKeyException ex) {
+            // connection was closed after the key was selected
+          }
+        }
+      } catch (ClosedSelectorException ex) {
+        break;
+      } catch (IOException ex) {
+        // TODO log this to log file
+        LOG.log(Level.SEVERE, null, ex);
+      } catch (InterruptedException ex) {
+        break;
+      }
+  }
+
+  /**
+   * Turn write interest on for the channel if its connection has datagrams queued, otherwise turn it off. The check is
+   * done on the reactor thread so that a datagram queued while the connection is draining its queue cannot be missed.
+   *
+   * @param channel channel of the connection
+   */
+  public void updateWriteInterest(SocketChannel channel) {
+    this.execute(() -> {
+      SelectionKey key = channel.keyFor(this.SELECTOR);
+
+      if (key == null || !key.isValid() || !(key.attachment() instanceof Connection))
+        return;
+
+      Connection connection = (Connection) key.attachment();
+
+      if (connection.hasPendingWrites() || !connection.getQueue().isEmpty())
+        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+      else
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+    });
+  }
+
+  private void runPendingOperations() {
+    Runnable operation;
+
+    while ((operation = this.PENDING_OPERATIONS.poll()) != null)
+      operation.run();
+  }
+}
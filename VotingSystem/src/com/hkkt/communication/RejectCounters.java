@@ -0,0 +1,74 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019 Hassan Khan, Kent Tsuenchy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.hkkt.communication;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Number of received frames dropped, per reason. Shared by the connections of a manager so that a flood of malformed
+ * frames shows up in one place instead of in the log.
+ *
+ * @author Kent Tsuenchy
+ */
+public class RejectCounters {
+  private static final DatagramCodec.FRAME_STATUS[] REASONS = DatagramCodec.FRAME_STATUS.values();
+  private final AtomicLongArray COUNTS;
+
+  public RejectCounters() {
+    this.COUNTS = new AtomicLongArray(REASONS.length);
+  }
+
+  public long get(DatagramCodec.FRAME_STATUS reason) {
+    return this.COUNTS.get(reason.ordinal());
+  }
+
+  /**
+   * Number of frames dropped for any reason.
+   *
+   * @return number of dropped frames
+   */
+  public long getTotal() {
+    long total = 0;
+
+    for (int i = 0; i < REASONS.length; i++)
+      total += this.COUNTS.get(i);
+
+    return total;
+  }
+
+  public void record(DatagramCodec.FRAME_STATUS reason) {
+    if (reason != DatagramCodec.FRAME_STATUS.VALID)
+      this.COUNTS.incrementAndGet(reason.ordinal());
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder counts = new StringBuilder("RejectCounters[");
+
+    for (int i = 1; i < REASONS.length; i++)
+      counts.append(i == 1 ? "" : ", ").append(REASONS[i]).append('=').append(this.COUNTS.get(i));
+
+    return counts.append(']').toString();
+  }
+}
@@ -27,149 +27,194 @@ import com.hkkt.votingsystem.AbstractServer;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.channels.ClosedChannelException;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.Iterator;
-import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class ServerConnectionManager {
+  public static final int ACCEPT_BATCH_SIZE = 64;
   public static final int MAX_NAME_LENGTH = 40;
+  public static final int MAX_UNCLAIMED_BYTES = 64 * 1024;
+  public static final int MAX_UNCLAIMED_DATAGRAMS = 64;
+  public static final int MAX_UNCLAIMED_NAMES = 256;
+  public static final int POLLING_INTERVAL = 200;
   public static final String SERVER_NAME = "SERVER";
+  public static final long UNCLAIMED_TIMEOUT = 30000;
   private static final String DEFAULT_CHANNEL = "Default_Channel_Name";
   private static final Logger LOG = Logger.getLogger(ServerConnectionManager.class.getName());
-  private final ConcurrentHashMap<String, SocketChannel> CHANNELS;
-  private final ConcurrentHashMap<String, Connection> CONNECTIONS;
-  private final ConcurrentHashMap<String, ConcurrentLinkedDeque<Datagram>> DATAGRAMS;
-  private final Selector SELECTOR;
+  private final AtomicLong ACCEPTED;
+  private final REACTOR_ASSIGNMENT ASSIGNMENT;
+  private final DatagramCodec CODEC;
+  private final ConnectionTable CONNECTIONS;
+  private final AtomicLong DATAGRAMS_SENT;
+  private final ConcurrentLinkedQueue<Connection> DEFERRED;
+  private final SELECT_MODE MODE;
+  private final AtomicInteger NEXT_REACTOR;
+  private final AtomicInteger PAUSED_CONNECTIONS;
+  private final Reactor[] REACTORS;
+  private final AtomicLong REJECTED;
+  private final RejectCounters REJECTED_FRAMES;
+  private final AbstractServer ROOT;
+  private final TaskHandler SELECTOR_HANDLER;
   private final TaskHandler TASK_HANDLER;
+  private final TRANSPORT TRANSPORT_TYPE;
+  private final ConcurrentHashMap<String, HeldDatagrams> UNCLAIMED;
+  private final AtomicLong WRITE_CALLS;
+  private long acceptWindowStart = 0;
+  private int acceptedInWindow = 0;
   private int defaultChannelId = 0;
+  private volatile int lastAcceptBatch = 0;
+  private volatile int maxAcceptRate = 0;
+  private volatile int maxConnections = Integer.MAX_VALUE;
   private ServerSocketChannel server = null;
 
   public ServerConnectionManager(InetSocketAddress address, AbstractServer root) throws ChannelSelectorCannotStartException {
-    this.CHANNELS = new ConcurrentHashMap<>();
-    this.CONNECTIONS = new ConcurrentHashMap<>();
-    this.DATAGRAMS = new ConcurrentHashMap<>();
-    this.TASK_HANDLER = new TaskHandler();
-
-    try {
-      this.SELECTOR = Selector.open();
-    } catch (IOException ex) {
-      LOG.log(Level.SEVERE, null, ex);
+    this(address, root, SELECT_MODE.BLOCKING);
+  }
 
-      throw new ChannelSelectorCannotStartException("Failed to start up conneciton.");
-    }
+  /**
+   *
+   * @param address address to listen on
+   * @param root server that incoming datagrams are handed to
+   * @param mode BLOCKING waits in select() and is woken up when there is work, POLLING sleeps for POLLING_INTERVAL
+   * between non-blocking selects
+   * <p>
+   * @throws ChannelSelectorCannotStartException
+   */
+  public ServerConnectionManager(InetSocketAddress address, AbstractServer root, SELECT_MODE mode) throws ChannelSelectorCannotStartException {
+    this(address, root, mode, new BinaryDatagramCodec());
+  }
 
-    Runnable selectorTask = () -> {
-      // TODO need to check how to kill thread if required to force quit
-      while (true)
-        try {
-          Thread.sleep(200);
+  /**
+   *
+   * @param address address to listen on
+   * @param root server that incoming datagrams are handed to
+   * @param mode BLOCKING waits in select() and is woken up when there is work, POLLING sleeps for POLLING_INTERVAL
+   * between non-blocking selects
+   * @param codec wire format used to encode and decode datagrams, clients have to use the same format
+   * <p>
+   * @throws ChannelSelectorCannotStartException
+   */
+  public ServerConnectionManager(InetSocketAddress address, AbstractServer root, SELECT_MODE mode, DatagramCodec codec) throws ChannelSelectorCannotStartException {
+    this(address, root, mode, codec, Runtime.getRuntime().availableProcessors(), REACTOR_ASSIGNMENT.ROUND_ROBIN);
+  }
 
-          int readyChannels = SELECTOR.selectNow();
+  /**
+   * Accepted channels are spread over a number of reactors, each with its own selector thread, so that readiness
+   * processing is not limited to one core.
+   *
+   * @param address address to listen on
+   * @param root server that incoming datagrams are handed to
+   * @param mode BLOCKING waits in select() and is woken up when there is work, POLLING sleeps for POLLING_INTERVAL
+   * between non-blocking selects
+   * @param codec wire format used to encode and decode datagrams, clients have to use the same format
+   * @param numReactors number of selector threads, at least one is started
+   * @param assignment how accepted channels are assigned to reactors
+   * <p>
+   * @throws ChannelSelectorCannotStartException
+   */
+  public ServerConnectionManager(InetSocketAddress address, AbstractServer root, SELECT_MODE mode, DatagramCodec codec, int numReactors, REACTOR_ASSIGNMENT assignment) throws ChannelSelectorCannotStartException {
+    this(address, root, TRANSPORT.REACTOR, mode, codec, numReactors, assignment);
+  }
 
-          if (readyChannels == 0)
-            continue;
+  /**
+   *
+   * @param address address to listen on
+   * @param root server that incoming datagrams are handed to
+   * @param transport REACTOR multiplexes channels over selector threads, THREAD_PER_CONNECTION reads each channel with
+   * blocking reads on a thread of its own
+   * @param codec wire format used to encode and decode datagrams, clients have to use the same format
+   * <p>
+   * @throws ChannelSelectorCannotStartException
+   */
+  public ServerConnectionManager(InetSocketAddress address, AbstractServer root, TRANSPORT transport, DatagramCodec codec) throws ChannelSelectorCannotStartException {
+    this(address, root, transport, SELECT_MODE.BLOCKING, codec, Runtime.getRuntime().availableProcessors(), REACTOR_ASSIGNMENT.ROUND_ROBIN);
+  }
 
-          Set<SelectionKey> selectedKeys = SELECTOR.selectedKeys();
-          Iterator<SelectionKey> keyIterator = selectedKeys.iterator();
+  private ServerConnectionManager(InetSocketAddress address, AbstractServer root, TRANSPORT transport, SELECT_MODE mode, DatagramCodec codec, int numReactors, REACTOR_ASSIGNMENT assignment) throws ChannelSelectorCannotStartException {
+    this.ACCEPTED = new AtomicLong(0);
+    this.ASSIGNMENT = assignment;
+    this.CODEC = codec;
+    this.CONNECTIONS = new ConnectionTable();
+    this.DEFERRED = new ConcurrentLinkedQueue<>();
+    this.MODE = mode;
+    this.NEXT_REACTOR = new AtomicInteger(0);
+    this.PAUSED_CONNECTIONS = new AtomicInteger(0);
+    // no selectors are needed if every connection gets a thread of its own
+    this.REACTORS = new Reactor[transport == TRANSPORT.REACTOR ? Math.max(1, numReactors) : 0];
+    this.REJECTED = new AtomicLong(0);
+    this.REJECTED_FRAMES = new RejectCounters();
+    this.ROOT = root;
+    this.TRANSPORT_TYPE = transport;
+    this.UNCLAIMED = new ConcurrentHashMap<>();
+    this.DATAGRAMS_SENT = new AtomicLong(0);
+    this.WRITE_CALLS = new AtomicLong(0);
+    // each reactor, or the acceptor if there are none, holds on to a thread for as long as the manager runs, connection
+    // tasks are handed to a separate pool sized to the cores. Tasks are posted from reactor threads, which must never
+    // run them, so a full pool rejects the task and the connection is deferred until a worker is free
+    this.SELECTOR_HANDLER = new TaskHandler(ServerConnectionManager.class.getSimpleName() + "-selector", Math.max(1, this.REACTORS.length), 0, TaskHandler.REJECTION_POLICY.ABORT);
+    this.TASK_HANDLER = new TaskHandler(ServerConnectionManager.class.getSimpleName() + "-worker", TaskHandler.DEFAULT_THREADS, TaskHandler.DEFAULT_QUEUE_CAPACITY, TaskHandler.REJECTION_POLICY.ABORT);
 
-          while (keyIterator.hasNext()) {
-            SelectionKey key = keyIterator.next();
-            Connection connection;
-            boolean startTask = true;
+    try {
+      for (int i = 0; i < this.REACTORS.length; i++)
+        this.REACTORS[i] = new Reactor(this, mode);
+    } catch (IOException ex) {
+      LOG.log(Level.SEVERE, null, ex);
 
-            if (key.attachment() instanceof Connection)
-              connection = (Connection) key.attachment();
-            else {
-              LOG.log(Level.WARNING, "Unrecognized attachment for channel.");
-              continue;
-            }
+      for (Reactor reactor : this.REACTORS)
+        if (reactor != null)
+          reactor.close();
 
-            if ((key.isReadable() || key.isWritable()) && connection.getTaskType() == Connection.TASK_TYPE.AVAILABLE) {
-              if (key.isReadable())
-                connection.setTaskType(Connection.TASK_TYPE.READ);
-              else if (key.isWritable())
-                connection.setTaskType(Connection.TASK_TYPE.WRITE);
-            } else
-              startTask = false;
-            // TODO log this to log file
-            // LOG.log(Level.WARNING, "Unknown event fired for a channel found in selector.");
-
-            if (startTask)
-              TASK_HANDLER.startTask(connection);
-
-            keyIterator.remove();
-          }
-        } catch (IOException ex) {
-          // TODO log this to log file
-          LOG.log(Level.SEVERE, null, ex);
-        } catch (InterruptedException ex) {
-          break;
-        }
-    };
+      throw new ChannelSelectorCannotStartException("Failed to start up conneciton.");
+    }
 
     try {
       this.server = ServerSocketChannel.open();
       this.server.socket().bind(address);
-      this.server.configureBlocking(true);
-
-      Runnable startListening = () -> {
-        // TODO need to check how to kill thread if required to force quit
-        while (true)
-          try {
-            SocketChannel channel = server.accept();
-            String name;
-
-            if (channel == null)
-              continue;
-
-            channel.configureBlocking(false);
-            name = getNextChannelName();
-
-            Connection connection = new Connection(name, this, root);
-
-            while (channel.isConnectionPending())
-              // do nothing for now, later on do set up if there is any
-              channel.finishConnect();
-
-            connection.toggleConnected();
-
-            // register channel with selector to notify for the specified ready events
-            channel.register(SELECTOR, SelectionKey.OP_READ | SelectionKey.OP_WRITE, connection);
-            connection.toggleListening();
-
-            // add to map for clean up later
-            CHANNELS.put(name, channel);
-            CONNECTIONS.put(name, connection);
-          } catch (ClosedChannelException ex) {
-            // break;
-          } catch (IOException ex) {
-            LOG.log(Level.SEVERE, null, ex);
-
-            /*
-             * if (!connection.isCreated()) throw new ConnectException("Failed to open socket channel"); else if
-             * (!connection.isConnected()) throw new ConnectException("Failed to connect to " +
-             * socketChannel.getRemoteAddress().toString()); else if (!connection.isListening()) throw new
-             * ConnectException("Failed to register socket channel for listening");
-             */
-          }
-      };
-
-      this.TASK_HANDLER.startTask(startListening);
-      this.TASK_HANDLER.startTask(selectorTask);
+
+      if (transport == TRANSPORT.THREAD_PER_CONNECTION) {
+        this.server.configureBlocking(true);
+
+        Runnable startListening = () -> {
+          while (true)
+            try {
+              this.admit(this.server.accept());
+            } catch (ClosedChannelException ex) {
+              break;
+            } catch (IOException ex) {
+              LOG.log(Level.SEVERE, null, ex);
+            }
+        };
+
+        this.SELECTOR_HANDLER.startTask(startListening);
+      } else {
+        // accepting is done by the first reactor, accepted channels are spread over all of them
+        this.server.configureBlocking(false);
+        this.REACTORS[0].registerAcceptor(this.server);
+      }
+
+      for (Reactor reactor : this.REACTORS)
+        this.SELECTOR_HANDLER.startTask(reactor);
     } catch (IOException ex) {
       LOG.log(Level.SEVERE, null, ex);
     }
   }
 
+  /**
+   * Queue a datagram for a connection. The datagram is dropped if the queue of the connection is full, use
+   * offerDatagram to find out whether it was queued.
+   *
+   * @param name connection name
+   * @param data datagram to send
+   */
   public void addDatagramToQueue(String name, Datagram data) {
-    this.DATAGRAMS.computeIfAbsent(name, key -> new ConcurrentLinkedDeque<>()).add(data);
+    if (this.offerDatagram(name, data) == null)
+      LOG.log(Level.WARNING, "Outbound queue of {0} is full or cannot be held, datagram dropped.", name);
   }
 
   /**
@@ -179,79 +224,590 @@ public class ServerConnectionManager {
    * operation.
    */
   public void cleanup() {
+    try {
+      if (this.server != null)
+        this.server.close();
+    } catch (IOException ex) {
+      LOG.log(Level.WARNING, null, ex);
+    }
+
+    this.SELECTOR_HANDLER.cleanup();
     this.TASK_HANDLER.cleanup();
-    this.CHANNELS.forEach((taskName, channel) -> {
-      try {
-        // may return null if no key found for given selector
-        SelectionKey key = channel.keyFor(this.SELECTOR);
+    this.CONNECTIONS.forEach(connection -> {
+      SocketChannel channel = connection.detachChannel();
+
+      this.CONNECTIONS.remove(connection);
+      connection.getQueue().clear();
 
+      try {
         // deregister the channel from the selector
-        if (key != null)
-          key.cancel();
+        if (channel != null && connection.getReactor() != null)
+          connection.getReactor().deregister(channel);
 
-        channel.close();
+        if (channel != null)
+          channel.close();
       } catch (IOException ex) {
         // TODO log this to log file
         LOG.log(Level.WARNING, null, ex);
       }
     });
-    this.CONNECTIONS.clear();
-    this.DATAGRAMS.clear();
+    this.UNCLAIMED.forEach((name, queue) -> queue.clear());
+    this.UNCLAIMED.clear();
 
-    try {
-      this.SELECTOR.close();
-    } catch (IOException ex) {
-      // TODO log this to log file
-      LOG.log(Level.WARNING, null, ex);
-    }
+    for (Reactor reactor : this.REACTORS)
+      reactor.close();
   }
 
   public void clearDatagramFromQueue(String name) {
-    this.DATAGRAMS.remove(name);
+    Connection connection = this.CONNECTIONS.get(name);
+    OutboundQueue queue = connection == null ? this.UNCLAIMED.remove(name) : connection.getQueue();
+
+    // connections waiting for the queue to drain are resumed
+    if (queue != null)
+      queue.clear();
+  }
+
+  /**
+   * Deregister and close the channel of a connection and forget about the connection. Datagrams still queued for the
+   * connection are dropped.
+   *
+   * @param name connection name
+   */
+  public void closeConnection(String name) {
+    Connection connection = this.CONNECTIONS.get(name);
+
+    if (connection != null)
+      this.closeConnection(connection);
+  }
+
+  /**
+   * Number of connections accepted and set up since start up.
+   *
+   * @return number of accepted connections
+   */
+  public long getAcceptedConnections() {
+    return this.ACCEPTED.get();
+  }
+
+  public DatagramCodec getCodec() {
+    return this.CODEC;
   }
 
   public SocketChannel getChannel(String name) {
-    return this.CHANNELS.get(name);
+    Connection connection = this.CONNECTIONS.get(name);
+
+    return connection == null ? null : connection.getChannel();
   }
 
-  public ConcurrentLinkedDeque<Datagram> getDatagrams(String name) {
-    return this.DATAGRAMS.get(name);
+  /**
+   *
+   * @param handle connection handle
+   * <p>
+   * @return connection in the given slot of the connection table, null if the slot is free
+   */
+  public Connection getConnection(int handle) {
+    return this.CONNECTIONS.get(handle);
+  }
+
+  public Connection getConnection(String name) {
+    return this.CONNECTIONS.get(name);
   }
 
-  public void removeDatagramFromQueue(String name, Datagram data) {
-    this.DATAGRAMS.computeIfPresent(name, (key, list) -> {
-      list.remove(data);
-      return list;
+  public int getConnectionCount() {
+    return this.CONNECTIONS.size();
+  }
+
+  /**
+   * Number of datagrams handed to channels since start up. Together with getWriteCalls this gives the number of write
+   * system calls per datagram.
+   *
+   * @return number of datagrams sent
+   */
+  public long getDatagramsSent() {
+    return this.DATAGRAMS_SENT.get();
+  }
+
+  /**
+   *
+   * @param name connection name
+   * <p>
+   * @return queue of the connection, or the datagrams held for the name if no connection has taken it yet
+   */
+  public OutboundQueue getDatagrams(String name) {
+    Connection connection = this.CONNECTIONS.get(name);
+
+    return connection == null ? this.UNCLAIMED.get(name) : connection.getQueue();
+  }
+
+  /**
+   * Resolve a connection name to its handle, datagrams can then be routed with offerDatagram(int, Datagram) without
+   * resolving the name again.
+   *
+   * @param name connection name
+   * <p>
+   * @return connection handle, -1 if there is no connection with the name
+   */
+  public int getHandle(String name) {
+    return this.CONNECTIONS.lookup(name);
+  }
+
+  /**
+   * Number of connections whose events are waiting because the worker pool was full when they were posted.
+   *
+   * @return number of deferred connections
+   */
+  public int getDeferredConnections() {
+    return this.DEFERRED.size();
+  }
+
+  /**
+   * Number of connections taken off the accept queue by the last accept. The depth of the accept queue itself is not
+   * visible, a batch of ACCEPT_BATCH_SIZE means connections were still waiting.
+   *
+   * @return size of the last accept batch
+   */
+  public int getLastAcceptBatch() {
+    return this.lastAcceptBatch;
+  }
+
+  public int getMaxAcceptRate() {
+    return this.maxAcceptRate;
+  }
+
+  public int getMaxConnections() {
+    return this.maxConnections;
+  }
+
+  /**
+   * Number of connections whose reads are paused because a queue they produce datagrams for is over its high
+   * watermark.
+   *
+   * @return number of paused connections
+   */
+  public int getPausedConnections() {
+    return this.PAUSED_CONNECTIONS.get();
+  }
+
+  /**
+   * Encoded size of the datagrams queued for a connection.
+   *
+   * @param name connection name
+   * <p>
+   * @return number of queued bytes
+   */
+  public long getQueuedBytes(String name) {
+    OutboundQueue queue = this.getDatagrams(name);
+
+    return queue == null ? 0 : queue.getBytes();
+  }
+
+  /**
+   * Number of datagrams queued for a connection.
+   *
+   * @param name connection name
+   * <p>
+   * @return number of queued datagrams
+   */
+  public int getQueuedDatagrams(String name) {
+    OutboundQueue queue = this.getDatagrams(name);
+
+    return queue == null ? 0 : queue.size();
+  }
+
+  /**
+   * Number of connections assigned to each reactor.
+   *
+   * @return connections per reactor
+   */
+  public int[] getReactorLoads() {
+    int[] loads = new int[this.REACTORS.length];
+
+    for (int i = 0; i < loads.length; i++)
+      loads[i] = this.REACTORS[i].getLoad();
+
+    return loads;
+  }
+
+  /**
+   * Number of connections closed right after being accepted because the connection limit or the accept rate was
+   * exceeded.
+   *
+   * @return number of rejected connections
+   */
+  public long getRejectedConnections() {
+    return this.REJECTED.get();
+  }
+
+  /**
+   * Number of received frames dropped by the connections of this manager, per reason.
+   *
+   * @return reject counters
+   */
+  public RejectCounters getRejectedFrames() {
+    return this.REJECTED_FRAMES;
+  }
+
+  public REACTOR_ASSIGNMENT getReactorAssignment() {
+    return this.ASSIGNMENT;
+  }
+
+  public SELECT_MODE getSelectMode() {
+    return this.MODE;
+  }
+
+  /**
+   * Number of times the selectors of all reactors have returned from a select, used to check that idle connections
+   * are not waking up the selectors.
+   *
+   * @return number of selector wakeups since start up
+   */
+  public long getSelectorWakeups() {
+    long wakeups = 0;
+
+    for (Reactor reactor : this.REACTORS)
+      wakeups += reactor.getWakeups();
+
+    return wakeups;
+  }
+
+  public TRANSPORT getTransport() {
+    return this.TRANSPORT_TYPE;
+  }
+
+  /**
+   * Pool that runs connection reads and writes, exposed for its queue and latency metrics.
+   *
+   * @return worker pool
+   */
+  public TaskHandler getWorkers() {
+    return this.TASK_HANDLER;
+  }
+
+  /**
+   * Number of channel writes made since start up.
+   *
+   * @return number of write calls
+   */
+  public long getWriteCalls() {
+    return this.WRITE_CALLS.get();
+  }
+
+  /**
+   * Queue a datagram for a connection if its queue has room for it. Datagrams for a name no connection has taken yet
+   * are held until a connection is renamed to it, for at most UNCLAIMED_TIMEOUT milliseconds. Held datagrams are
+   * limited to MAX_UNCLAIMED_DATAGRAMS and MAX_UNCLAIMED_BYTES per name and to MAX_UNCLAIMED_NAMES names, datagrams
+   * over these limits or for names longer than MAX_NAME_LENGTH are refused.
+   *
+   * @param name connection name
+   * @param data datagram to send
+   * <p>
+   * @return handle cancelling the datagram while it is queued, null if the queue is full or the datagram cannot be held
+   */
+  public OutboundQueue.Handle offerDatagram(String name, Datagram data) {
+    Connection connection = this.CONNECTIONS.get(name);
+    OutboundQueue.Handle[] handle = new OutboundQueue.Handle[1];
+    long now = System.currentTimeMillis();
+
+    if (connection != null)
+      return this.offerDatagram(connection, data);
+
+    if (name == null || name.length() > MAX_NAME_LENGTH)
+      return null;
+
+    if (this.UNCLAIMED.size() >= MAX_UNCLAIMED_NAMES)
+      this.UNCLAIMED.values().removeIf(queue -> queue.isExpired(now));
+
+    // checked again under the lock of the held queue, a rename claims the queue under the same lock
+    this.UNCLAIMED.compute(name, (key, queue) -> {
+      if (this.CONNECTIONS.lookup(key) >= 0)
+        return queue;
+
+      // the map may go slightly over the limit while names are added concurrently
+      if (queue == null && this.UNCLAIMED.size() >= MAX_UNCLAIMED_NAMES)
+        return null;
+
+      if (queue != null && queue.isExpired(now))
+        queue.clear();
+
+      if (queue == null || queue.isExpired(now))
+        queue = new HeldDatagrams(this.CODEC, now + UNCLAIMED_TIMEOUT);
+
+      handle[0] = queue.offer(data);
+
+      return queue;
     });
+
+    return handle[0] == null && this.CONNECTIONS.lookup(name) >= 0 ? this.offerDatagram(name, data) : handle[0];
+  }
+
+  /**
+   * Queue a datagram for the connection with the given handle if its queue has room for it.
+   *
+   * @param handle connection handle
+   * @param data datagram to send
+   * <p>
+   * @return handle cancelling the datagram while it is queued, null if the queue is full or there is no such connection
+   */
+  public OutboundQueue.Handle offerDatagram(int handle, Datagram data) {
+    Connection connection = this.CONNECTIONS.get(handle);
+
+    return connection == null ? null : this.offerDatagram(connection, data);
   }
 
   /**
+   * Cancel a datagram that has not been written yet.
+   *
+   * @param name connection name
+   * @param id id of the datagram
+   * <p>
+   * @return true if the datagram was still queued
+   */
+  public boolean removeDatagramFromQueue(String name, long id) {
+    OutboundQueue queue = this.getDatagrams(name);
+
+    return queue != null && queue.cancel(id);
+  }
+
+  public boolean removeDatagramFromQueue(String name, Datagram data) {
+    return this.removeDatagramFromQueue(name, data.getId());
+  }
+
+  /**
+   * Limit the number of connections accepted per second, connections over the limit are closed. 0 or less turns the
+   * limit off.
+   *
+   * @param maxAcceptRate connections per second
+   */
+  public void setMaxAcceptRate(int maxAcceptRate) {
+    this.maxAcceptRate = maxAcceptRate;
+  }
+
+  /**
+   * Limit the number of open connections, connections accepted over the limit are closed.
+   *
+   * @param maxConnections maximum number of open connections
+   */
+  public void setMaxConnections(int maxConnections) {
+    this.maxConnections = maxConnections;
+  }
+
+  /**
+   * Rename a connection. The connection keeps its handle and queue, datagrams held for the new name are moved to its
+   * queue.
    *
    * @param oldName
    * @param newName id of client, should not be more than 40 characters
    * <p>
-   * @return
+   * @return true if renamed, false if there is no connection with the old name or the new name is taken
    */
   public boolean updateChannelId(String oldName, String newName) {
-    if (newName.length() > MAX_NAME_LENGTH)
+    Connection connection = this.CONNECTIONS.get(oldName);
+    HeldDatagrams held;
+    Datagram data;
+
+    if (newName.length() > MAX_NAME_LENGTH || connection == null || !this.CONNECTIONS.rename(connection, newName))
       return false;
 
-    if (this.CHANNELS.containsKey(oldName) && !this.CHANNELS.containsKey(newName)) {
-      this.CHANNELS.put(newName, this.CHANNELS.remove(oldName));
+    held = this.UNCLAIMED.remove(newName);
+
+    if (held != null && !held.isExpired(System.currentTimeMillis()))
+      while ((data = held.poll()) != null)
+        this.addDatagramToQueue(connection, data);
+
+    this.updateWriteInterest(connection);
+
+    return true;
+  }
+
+  /**
+   * Accept the connections waiting on the server channel, at most ACCEPT_BATCH_SIZE per call so that a burst of new
+   * connections does not hold up the reactor. Called by the reactor that has the server channel registered.
+   *
+   * @param server server channel in non-blocking mode
+   * <p>
+   * @throws IOException
+   */
+  void acceptConnections(ServerSocketChannel server) throws IOException {
+    SocketChannel channel;
+    int accepted = 0;
+
+    while (accepted < ACCEPT_BATCH_SIZE && (channel = server.accept()) != null) {
+      this.admit(channel);
+      accepted++;
+    }
+
+    this.lastAcceptBatch = accepted;
+  }
+
+  void addDatagramToQueue(Connection connection, Datagram data) {
+    if (this.offerDatagram(connection, data) == null)
+      LOG.log(Level.WARNING, "Outbound queue of {0} is full, datagram dropped.", connection.getName());
+  }
+
+  /**
+   * Remember a connection whose events could not be handed to the worker pool. The events stay in its mailbox, in the
+   * reactor transport its ready operations also stay out of the interest set, so nothing more is read from it until a
+   * worker picks it up.
+   *
+   * @param connection connection to schedule again later
+   */
+  void deferConnection(Connection connection) {
+    this.DEFERRED.add(connection);
+  }
+
+  /**
+   * Schedule the longest deferred connection again, called whenever a worker has finished with a connection.
+   */
+  void retryDeferredConnection() {
+    Connection connection = this.DEFERRED.poll();
 
-      this.CONNECTIONS.computeIfPresent(oldName, (key, conn) -> {
-        conn.setName(newName);
-        return this.CONNECTIONS.put(newName, conn);
-      });
+    if (connection != null)
+      connection.schedule();
+  }
 
-      this.DATAGRAMS.computeIfPresent(oldName, (key, data) -> {
-        return this.DATAGRAMS.put(newName, data);
-      });
+  /**
+   * Deregister and close the channel of a connection and take it out of the connection table.
+   *
+   * @param connection connection to close
+   */
+  void closeConnection(Connection connection) {
+    SocketChannel channel = connection.detachChannel();
 
-      return true;
+    // closed already
+    if (channel == null)
+      return;
+
+    this.CONNECTIONS.remove(connection);
+    this.ROOT.connectionClosed(connection);
+    connection.getQueue().clear();
+    this.resumeReads(connection);
+    connection.releaseBuffers();
+
+    try {
+      if (connection.getReactor() != null)
+        connection.getReactor().deregister(channel);
+
+      channel.close();
+    } catch (IOException ex) {
+      // TODO log this to log file
+      LOG.log(Level.WARNING, null, ex);
     }
+  }
+
+  OutboundQueue.Handle offerDatagram(Connection connection, Datagram data) {
+    OutboundQueue.Handle handle = connection.getQueue().offer(data);
 
-    return false;
+    if (handle != null)
+      this.updateWriteInterest(connection);
+
+    return handle;
+  }
+
+  /**
+   * Stop reading from a connection until the queue it is producing for has drained below its low watermark.
+   *
+   * @param connection connection producing datagrams
+   * @param queue queue over its high watermark
+   */
+  void pauseReads(Connection connection, OutboundQueue queue) {
+    if (connection.pauseReading())
+      this.PAUSED_CONNECTIONS.incrementAndGet();
+
+    queue.onDrained(() -> this.resumeReads(connection));
+  }
+
+  void recordDatagramsSent(int count) {
+    this.DATAGRAMS_SENT.addAndGet(count);
+  }
+
+  void recordWrite() {
+    this.WRITE_CALLS.incrementAndGet();
+  }
+
+  void resumeReads(Connection connection) {
+    if (connection.resumeReading())
+      this.PAUSED_CONNECTIONS.decrementAndGet();
+  }
+
+  /**
+   * Turn write interest on for the channel of the given connection if it has datagrams queued, otherwise turn it off.
+   *
+   * @param connection connection to update
+   */
+  void updateWriteInterest(Connection connection) {
+    SocketChannel channel = connection.getChannel();
+
+    if (channel == null)
+      return;
+
+    // without a selector the queue is drained by a write task as soon as something is queued
+    if (this.TRANSPORT_TYPE == TRANSPORT.THREAD_PER_CONNECTION) {
+      if (connection.hasPendingWrites() || !connection.getQueue().isEmpty())
+        connection.post(Connection.TASK_TYPE.WRITE);
+    } else if (connection.getReactor() != null)
+      connection.getReactor().updateWriteInterest(channel);
+  }
+
+  /**
+   * Set up a connection for a newly accepted channel, or close the channel if it is over the connection limit or the
+   * accept rate. A channel that cannot be set up is closed and logged, so the caller can go on accepting. Only called
+   * from the thread accepting connections.
+   *
+   * @param channel accepted channel
+   */
+  private void admit(SocketChannel channel) {
+    long now = System.currentTimeMillis();
+    Connection connection = null;
+
+    if (now - this.acceptWindowStart >= 1000) {
+      this.acceptWindowStart = now;
+      this.acceptedInWindow = 0;
+    }
+
+    if (this.CONNECTIONS.size() >= this.maxConnections || this.maxAcceptRate > 0 && this.acceptedInWindow >= this.maxAcceptRate) {
+      this.REJECTED.incrementAndGet();
+      this.closeChannel(channel);
+
+      return;
+    }
+
+    this.acceptedInWindow++;
+
+    try {
+      channel.configureBlocking(this.TRANSPORT_TYPE == TRANSPORT.THREAD_PER_CONNECTION);
+      // accepted channels are already connected
+      do {
+        connection = new Connection(this.getNextChannelName(), this, this.ROOT);
+        connection.setChannel(channel);
+      } while (this.CONNECTIONS.add(connection) < 0);
+
+      connection.toggleConnected();
+
+      if (this.TRANSPORT_TYPE == TRANSPORT.THREAD_PER_CONNECTION) {
+        connection.toggleListening();
+        VirtualThreads.start(connection.getName(), connection::serve);
+      } else
+        // the reactor registers the channel with its selector on its own thread
+        this.nextReactor().register(channel, connection);
+
+      this.ACCEPTED.incrementAndGet();
+    } catch (IOException | RuntimeException | OutOfMemoryError ex) {
+      LOG.log(Level.SEVERE, "Could not set up accepted channel, closing it.", ex);
+
+      if (connection != null)
+        this.closeConnection(connection);
+
+      // no-op if the connection closed it already
+      this.closeChannel(channel);
+    }
+  }
+
+  private void closeChannel(SocketChannel channel) {
+    try {
+      channel.close();
+    } catch (IOException ex) {
+      LOG.log(Level.WARNING, null, ex);
+    }
   }
 
   private String getNextChannelName() {
@@ -260,8 +816,49 @@ public class ServerConnectionManager {
     do {
       name = DEFAULT_CHANNEL + "[" + this.defaultChannelId + "]";
       this.defaultChannelId++; // may cause overflow if max reached
-    } while (this.CHANNELS.containsKey(name));
+    } while (this.CONNECTIONS.lookup(name) >= 0);
 
     return name;
   }
+
+  private Reactor nextReactor() {
+    Reactor next = this.REACTORS[0];
+
+    if (this.ASSIGNMENT == REACTOR_ASSIGNMENT.LEAST_LOADED) {
+      for (Reactor reactor : this.REACTORS)
+        if (reactor.getLoad() < next.getLoad())
+          next = reactor;
+    } else
+      next = this.REACTORS[Math.floorMod(this.NEXT_REACTOR.getAndIncrement(), this.REACTORS.length)];
+
+    return next;
+  }
+
+  /**
+   * Datagrams held for a name no connection has taken yet, dropped once expired.
+   */
+  private static final class HeldDatagrams extends OutboundQueue {
+    private final long EXPIRES;
+
+    private HeldDatagrams(DatagramCodec codec, long expires) {
+      super(codec, MAX_UNCLAIMED_DATAGRAMS, MAX_UNCLAIMED_BYTES);
+      this.EXPIRES = expires;
+    }
+
+    private boolean isExpired(long now) {
+      return now >= this.EXPIRES;
+    }
+  }
+
+  public static enum REACTOR_ASSIGNMENT {
+    LEAST_LOADED, ROUND_ROBIN
+  }
+
+  public static enum SELECT_MODE {
+    BLOCKING, POLLING
+  }
+
+  public static enum TRANSPORT {
+    REACTOR, THREAD_PER_CONNECTION
+  }
 }
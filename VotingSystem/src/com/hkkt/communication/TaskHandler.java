@@ -23,19 +23,37 @@
  */
 package com.hkkt.communication;
 
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 /**
+ * Named, bounded thread pool. Tasks beyond the thread limit wait in a queue of the given capacity, once that is full
+ * the rejection policy decides what happens to the task.
  *
  * @author Kent Tsuenchy
  */
 public class TaskHandler {
+  public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+  public static final int DEFAULT_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+  public static final long KEEP_ALIVE_MILLIS = 60000;
   private static final Logger LOG = Logger.getLogger(TaskHandler.class.getName());
+  private static final ThreadLocal<ThreadPoolExecutor> POOL_OF_THREAD = new ThreadLocal<>();
+  private final AtomicLong COMPLETED;
+  private final String NAME;
+  private final AtomicLong QUEUE_NANOS;
+  private final AtomicLong REJECTED;
+  private final AtomicLong RUN_NANOS;
 
   /**
    *
@@ -46,7 +64,35 @@ public class TaskHandler {
    *
    */
   public TaskHandler() {
-    this.executor = (ThreadPoolExecutor) Executors.newCachedThreadPool();
+    this(TaskHandler.class.getSimpleName(), DEFAULT_THREADS);
+  }
+
+  /**
+   *
+   * @param name prefix for the names of the pool threads
+   * @param threads maximum number of threads
+   */
+  public TaskHandler(String name, int threads) {
+    this(name, threads, DEFAULT_QUEUE_CAPACITY, REJECTION_POLICY.CALLER_RUNS);
+  }
+
+  /**
+   *
+   * @param name prefix for the names of the pool threads
+   * @param threads maximum number of threads, idle threads are stopped after KEEP_ALIVE_MILLIS
+   * @param queueCapacity number of tasks that can wait for a thread, 0 hands tasks directly to a thread
+   * @param policy what to do with a task once all threads are busy and the queue is full
+   */
+  public TaskHandler(String name, int threads, int queueCapacity, REJECTION_POLICY policy) {
+    BlockingQueue<Runnable> queue = queueCapacity > 0 ? new LinkedBlockingQueue<>(queueCapacity) : new SynchronousQueue<>();
+
+    this.COMPLETED = new AtomicLong(0);
+    this.NAME = name;
+    this.QUEUE_NANOS = new AtomicLong(0);
+    this.REJECTED = new AtomicLong(0);
+    this.RUN_NANOS = new AtomicLong(0);
+    this.executor = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads), KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS, queue, new NamedThreadFactory(name, this), this.countRejections(policy.getHandler()));
+    this.executor.allowCoreThreadTimeOut(true);
   }
 
   /**
@@ -63,12 +109,78 @@ public class TaskHandler {
     }
   }
 
+  public int getActiveThreads() {
+    return this.executor.getActiveCount();
+  }
+
+  /**
+   * Average time a task waited in the queue before a thread picked it up.
+   *
+   * @return average queue time in nanoseconds
+   */
+  public long getAverageQueueTime() {
+    long completed = this.COMPLETED.get();
+
+    return completed == 0 ? 0 : this.QUEUE_NANOS.get() / completed;
+  }
+
+  /**
+   * Average time a task took to run once picked up by a thread.
+   *
+   * @return average run time in nanoseconds
+   */
+  public long getAverageRunTime() {
+    long completed = this.COMPLETED.get();
+
+    return completed == 0 ? 0 : this.RUN_NANOS.get() / completed;
+  }
+
+  public long getCompletedTasks() {
+    return this.COMPLETED.get();
+  }
+
+  public int getMaxThreads() {
+    return this.executor.getMaximumPoolSize();
+  }
+
+  public String getName() {
+    return this.NAME;
+  }
+
+  public int getPoolSize() {
+    return this.executor.getPoolSize();
+  }
+
+  public int getQueueDepth() {
+    return this.executor.getQueue().size();
+  }
+
+  /**
+   * Number of tasks that did not get a thread or a place in the queue, regardless of how the rejection policy then
+   * handled them.
+   *
+   * @return number of rejected tasks
+   */
+  public long getRejectedTasks() {
+    return this.REJECTED.get();
+  }
+
   /**
    *
    * @param r
    */
   public void startTask(Runnable r) {
-    this.executor.submit(r);
+    long submitted = System.nanoTime();
+
+    this.executor.execute(() -> {
+      long started = System.nanoTime();
+
+      try {
+        r.run();
+      } finally {
+        this.recordTask(submitted, started);
+      }
+    });
   }
 
   /**
@@ -78,6 +190,106 @@ public class TaskHandler {
    * @return
    */
   public <T> Future<T> startTask(Callable<T> c) {
-    return this.executor.submit(c);
+    long submitted = System.nanoTime();
+
+    return this.executor.submit(() -> {
+      long started = System.nanoTime();
+
+      try {
+        return c.call();
+      } finally {
+        this.recordTask(submitted, started);
+      }
+    });
+  }
+
+  @Override
+  public String toString() {
+    return this.NAME + "[threads=" + this.getPoolSize() + "/" + this.getMaxThreads() + ", active=" + this.getActiveThreads() + ", queued=" + this.getQueueDepth() + ", completed=" + this.getCompletedTasks() + ", rejected=" + this.getRejectedTasks() + "]";
+  }
+
+  private RejectedExecutionHandler countRejections(RejectedExecutionHandler handler) {
+    return (r, executor) -> {
+      this.REJECTED.incrementAndGet();
+      handler.rejectedExecution(r, executor);
+    };
+  }
+
+  private void recordTask(long submitted, long started) {
+    long finished = System.nanoTime();
+
+    this.QUEUE_NANOS.addAndGet(started - submitted);
+    this.RUN_NANOS.addAndGet(finished - started);
+    this.COMPLETED.incrementAndGet();
+  }
+
+  public static enum REJECTION_POLICY {
+    /**
+     * Throw a RejectedExecutionException to the caller.
+     */
+    ABORT(new ThreadPoolExecutor.AbortPolicy()),
+    /**
+     * Wait for room in the queue, which slows down the submitter without running the task on its thread. A thread of the
+     * pool itself runs the task instead, it could otherwise end up waiting for its own pool. Dropped once the pool is
+     * shut down.
+     */
+    BLOCK((r, executor) -> {
+      if (executor.isShutdown())
+        return;
+
+      if (POOL_OF_THREAD.get() == executor) {
+        r.run();
+        return;
+      }
+
+      try {
+        executor.getQueue().put(r);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new RejectedExecutionException("Interrupted while waiting for room in the queue.", ex);
+      }
+    }),
+    /**
+     * Run the task on the thread that submitted it, which slows down the submitter.
+     */
+    CALLER_RUNS(new ThreadPoolExecutor.CallerRunsPolicy()),
+    /**
+     * Drop the task.
+     */
+    DISCARD(new ThreadPoolExecutor.DiscardPolicy()),
+    /**
+     * Drop the oldest queued task and queue this one instead.
+     */
+    DISCARD_OLDEST(new ThreadPoolExecutor.DiscardOldestPolicy());
+
+    private final RejectedExecutionHandler HANDLER;
+
+    private REJECTION_POLICY(RejectedExecutionHandler handler) {
+      this.HANDLER = handler;
+    }
+
+    RejectedExecutionHandler getHandler() {
+      return this.HANDLER;
+    }
+  }
+
+  private static class NamedThreadFactory implements ThreadFactory {
+    private final String NAME;
+    private final TaskHandler OWNER;
+    private final AtomicInteger THREAD_COUNT;
+
+    NamedThreadFactory(String name, TaskHandler owner) {
+      this.NAME = name;
+      this.OWNER = owner;
+      this.THREAD_COUNT = new AtomicInteger(0);
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+      return new Thread(() -> {
+        POOL_OF_THREAD.set(this.OWNER.executor);
+        r.run();
+      }, this.NAME + "-" + this.THREAD_COUNT.incrementAndGet());
+    }
   }
 }
@@ -0,0 +1,108 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019 Hassan Khan, Kent Tsuenchy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.hkkt.communication;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Starts the threads used by the thread per connection transport and by the dispatch of received datagrams. Virtual
+ * threads are used when the JVM has them (Java 21 and later), they are looked up reflectively so that the project still
+ * builds and runs on older JVMs, which get platform threads instead.
+ *
+ * @author Kent Tsuenchy
+ */
+public class VirtualThreads {
+  private static final Logger LOG = Logger.getLogger(VirtualThreads.class.getName());
+  private static final Object VIRTUAL_BUILDER = lookupVirtualBuilder();
+
+  private VirtualThreads() {
+  }
+
+  /**
+   * Executor that starts a thread for every task, for tasks that may block.
+   *
+   * @param name name of the started threads
+   * <p>
+   * @return the executor
+   */
+  public static Executor executor(String name) {
+    return task -> start(name, task);
+  }
+
+  /**
+   * Whether threads started by this class are virtual threads.
+   *
+   * @return true if the JVM supports virtual threads
+   */
+  public static boolean isAvailable() {
+    return VIRTUAL_BUILDER != null;
+  }
+
+  /**
+   * Start a thread for a long running blocking task.
+   *
+   * @param name thread name
+   * @param task task to run
+   * <p>
+   * @return the started thread
+   */
+  public static Thread start(String name, Runnable task) {
+    Thread thread = newThreadFactory().newThread(task);
+
+    thread.setName(name);
+    thread.start();
+
+    return thread;
+  }
+
+  private static Object lookupVirtualBuilder() {
+    try {
+      return Thread.class.getMethod("ofVirtual").invoke(null);
+    } catch (ReflectiveOperationException ex) {
+      LOG.log(Level.FINE, "Virtual threads not supported, using platform threads.");
+
+      return null;
+    }
+  }
+
+  private static ThreadFactory newThreadFactory() {
+    if (VIRTUAL_BUILDER != null)
+      try {
+        // the builder itself is not thread safe, but the factories it creates are
+        Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+
+        synchronized (VIRTUAL_BUILDER) {
+          return (ThreadFactory) factory.invoke(VIRTUAL_BUILDER);
+        }
+      } catch (ReflectiveOperationException ex) {
+        LOG.log(Level.WARNING, null, ex);
+      }
+
+    return Thread::new;
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019 Hassan Khan, Kent Tsuenchy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.hkkt.util;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+
+/**
+ * Bounded pool of Cipher instances per transformation. Looking up a Cipher goes through the security providers every
+ * time, a pooled one only has to be initialized with the key it is used with. A Cipher is not thread safe, it belongs
+ * to whoever acquired it until it is released.
+ *
+ * @author Kent Tsuenchy
+ */
+public class CipherPool {
+  public static final int DEFAULT_MAX_POOLED_PER_TRANSFORMATION = 64;
+  private static CipherPool instance;
+
+  public static synchronized CipherPool getInstance() {
+    if (instance == null)
+      instance = new CipherPool(DEFAULT_MAX_POOLED_PER_TRANSFORMATION);
+
+    return instance;
+  }
+
+  private final ConcurrentHashMap<String, ConcurrentLinkedQueue<Cipher>> FREE;
+  private final ConcurrentHashMap<String, AtomicInteger> FREE_COUNT;
+  private final AtomicLong HITS;
+  private final int MAX_POOLED_PER_TRANSFORMATION;
+  private final AtomicLong MISSES;
+
+  public CipherPool(int maxPooledPerTransformation) {
+    this.FREE = new ConcurrentHashMap<>();
+    this.FREE_COUNT = new ConcurrentHashMap<>();
+    this.HITS = new AtomicLong(0);
+    this.MAX_POOLED_PER_TRANSFORMATION = maxPooledPerTransformation;
+    this.MISSES = new AtomicLong(0);
+  }
+
+  /**
+   * Get a Cipher for the transformation. It has to be initialized before every use, as it may still hold the key and
+   * mode of its previous user.
+   *
+   * @param transformation e.g. RSA/ECB/PKCS1Padding
+   * <p>
+   * @return cipher owned by the caller until it is released
+   * <p>
+   * @throws NoSuchAlgorithmException
+   * @throws NoSuchPaddingException
+   */
+  public Cipher acquire(String transformation) throws NoSuchAlgorithmException, NoSuchPaddingException {
+    ConcurrentLinkedQueue<Cipher> free = this.FREE.get(transformation);
+    Cipher cipher = free == null ? null : free.poll();
+
+    if (cipher == null) {
+      this.MISSES.incrementAndGet();
+
+      return Cipher.getInstance(transformation);
+    }
+
+    this.FREE_COUNT.get(transformation).decrementAndGet();
+    this.HITS.incrementAndGet();
+
+    return cipher;
+  }
+
+  public long getHits() {
+    return this.HITS.get();
+  }
+
+  public long getMisses() {
+    return this.MISSES.get();
+  }
+
+  public int getPooled() {
+    return this.FREE_COUNT.values().stream().mapToInt(AtomicInteger::get).sum();
+  }
+
+  /**
+   * Give a cipher back to the pool, it must not be used anymore afterwards.
+   *
+   * @param cipher cipher from acquire, may be null
+   */
+  public void release(Cipher cipher) {
+    String transformation;
+
+    if (cipher == null)
+      return;
+
+    // the transformation the cipher was created with
+    transformation = cipher.getAlgorithm();
+
+    // bounded, anything beyond the limit is left for the garbage collector
+    if (this.FREE_COUNT.computeIfAbsent(transformation, key -> new AtomicInteger(0)).incrementAndGet() <= this.MAX_POOLED_PER_TRANSFORMATION)
+      this.FREE.computeIfAbsent(transformation, key -> new ConcurrentLinkedQueue<>()).add(cipher);
+    else
+      this.FREE_COUNT.get(transformation).decrementAndGet();
+  }
+}
@@ -0,0 +1,214 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019 Hassan Khan, Kent Tsuenchy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.hkkt.util;
+
+import com.hkkt.communication.KDC;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.KeyAgreement;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Public key encryption with X25519 key pairs, which can only agree on a secret and not encrypt by themselves. Every
+ * message gets a new ephemeral key pair, the secret it agrees on with the receiver's key is hashed into an AES key and
+ * the message is sealed with it like in a SecureSession. The result is the ephemeral public key followed by the sealed
+ * message, so only the holder of the receiver's private key can derive the AES key again.
+ *
+ * @author Kent Tsuenchy
+ */
+public class EllipticCurveCipher {
+  /**
+   * Length of an X.509 encoded X25519 public key.
+   */
+  public static final int EPHEMERAL_KEY_LENGTH = 44;
+  /**
+   * Length of a wrapped session key, which is also the shortest possible output.
+   */
+  public static final int WRAPPED_KEY_LENGTH = EPHEMERAL_KEY_LENGTH + SecureSession.IV_LENGTH + SecureSession.KEY_LENGTH + SecureSession.TAG_LENGTH;
+  private static final ThreadLocal<KeyPairGenerator> EPHEMERAL_KEYS = ThreadLocal.withInitial(() -> {
+    try {
+      return KeyPairGenerator.getInstance(KDC.EC_KEY_AGREEMENT_STANDARD);
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(ex);
+    }
+  });
+
+  private EllipticCurveCipher() {
+  }
+
+  /**
+   *
+   * @param key any key
+   * <p>
+   * @return whether the key is an X25519 key this class encrypts or decrypts with
+   */
+  public static boolean accepts(Key key) {
+    return "XDH".equals(key.getAlgorithm()) || KDC.EC_KEY_AGREEMENT_STANDARD.equals(key.getAlgorithm());
+  }
+
+  /**
+   *
+   * @param data encrypted data from encrypt
+   * @param key private key of the receiver
+   * <p>
+   * @return plain data
+   * <p>
+   * @throws NoSuchAlgorithmException
+   * @throws NoSuchPaddingException
+   * @throws InvalidKeyException
+   * @throws IllegalBlockSizeException
+   * @throws BadPaddingException if the data was not encrypted for the key or has been tampered with
+   */
+  public static byte[] decrypt(byte[] data, PrivateKey key) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+    byte[] encodedKey = new byte[EPHEMERAL_KEY_LENGTH];
+    PublicKey ephemeralKey;
+
+    if (data.length < EPHEMERAL_KEY_LENGTH)
+      throw new IllegalBlockSizeException("Encrypted data is too short.");
+
+    System.arraycopy(data, 0, encodedKey, 0, EPHEMERAL_KEY_LENGTH);
+
+    try {
+      ephemeralKey = KeyFactory.getInstance(KDC.EC_KEY_AGREEMENT_STANDARD).generatePublic(new X509EncodedKeySpec(encodedKey));
+    } catch (GeneralSecurityException ex) {
+      throw new InvalidKeyException(ex);
+    }
+
+    return SecureSession.of(agree(key, ephemeralKey, encodedKey)).open(data, EPHEMERAL_KEY_LENGTH, null);
+  }
+
+  /**
+   *
+   * @param data plain data of any length
+   * @param key public key of the receiver
+   * <p>
+   * @return ephemeral public key followed by the sealed data
+   * <p>
+   * @throws NoSuchAlgorithmException
+   * @throws NoSuchPaddingException
+   * @throws InvalidKeyException
+   * @throws IllegalBlockSizeException
+   * @throws BadPaddingException
+   */
+  public static byte[] encrypt(byte[] data, PublicKey key) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+    KeyPair ephemeralPair = EPHEMERAL_KEYS.get().genKeyPair();
+    byte[] encodedKey = ephemeralPair.getPublic().getEncoded();
+    byte[] sealed = SecureSession.of(agree(ephemeralPair.getPrivate(), key, encodedKey)).seal(data, null);
+    byte[] encrypted = new byte[encodedKey.length + sealed.length];
+
+    System.arraycopy(encodedKey, 0, encrypted, 0, encodedKey.length);
+    System.arraycopy(sealed, 0, encrypted, encodedKey.length, sealed.length);
+
+    return encrypted;
+  }
+
+  /**
+   * Decrypt a key encrypted with wrap, the counterpart of Cipher.unwrap.
+   *
+   * @param wrappedKey key from wrap
+   * @param key private key of the receiver
+   * @param algorithm algorithm of the wrapped key
+   * @param keyType Cipher.SECRET_KEY, Cipher.PUBLIC_KEY or Cipher.PRIVATE_KEY
+   * <p>
+   * @return the key
+   * <p>
+   * @throws NoSuchAlgorithmException
+   * @throws NoSuchPaddingException
+   * @throws InvalidKeyException if the key type is unknown or the decrypted data is no key of the algorithm
+   * @throws IllegalBlockSizeException
+   * @throws BadPaddingException
+   */
+  public static Key unwrap(byte[] wrappedKey, PrivateKey key, String algorithm, int keyType) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+    byte[] encodedKey = decrypt(wrappedKey, key);
+
+    try {
+      switch (keyType) {
+        case Cipher.SECRET_KEY:
+          return new SecretKeySpec(encodedKey, algorithm);
+        case Cipher.PUBLIC_KEY:
+          return KeyFactory.getInstance(algorithm).generatePublic(new X509EncodedKeySpec(encodedKey));
+        case Cipher.PRIVATE_KEY:
+          return KeyFactory.getInstance(algorithm).generatePrivate(new PKCS8EncodedKeySpec(encodedKey));
+        default:
+          throw new InvalidKeyException("Unknown key type " + keyType + ".");
+      }
+    } catch (GeneralSecurityException ex) {
+      if (ex instanceof InvalidKeyException)
+        throw (InvalidKeyException) ex;
+
+      throw new InvalidKeyException(ex);
+    }
+  }
+
+  /**
+   * Encrypt a key, the counterpart of Cipher.wrap.
+   *
+   * @param keyToWrap key with an encoded form
+   * @param key public key of the receiver
+   * <p>
+   * @return wrapped key
+   * <p>
+   * @throws NoSuchAlgorithmException
+   * @throws NoSuchPaddingException
+   * @throws InvalidKeyException if the key to wrap has no encoded form
+   * @throws IllegalBlockSizeException
+   * @throws BadPaddingException
+   */
+  public static byte[] wrap(Key keyToWrap, PublicKey key) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+    byte[] encodedKey = keyToWrap.getEncoded();
+
+    if (encodedKey == null)
+      throw new InvalidKeyException("Key cannot be encoded.");
+
+    return encrypt(encodedKey, key);
+  }
+
+  private static SecretKeySpec agree(PrivateKey privateKey, PublicKey publicKey, byte[] ephemeralKey) throws NoSuchAlgorithmException, InvalidKeyException {
+    KeyAgreement agreement = KeyAgreement.getInstance(KDC.EC_KEY_AGREEMENT_STANDARD);
+    MessageDigest digest = MessageDigest.getInstance("SHA-256");
+
+    agreement.init(privateKey);
+    agreement.doPhase(publicKey, true);
+
+    // binding the ephemeral key into the AES key ties the sealed data to this very message
+    digest.update(agreement.generateSecret());
+    digest.update(ephemeralKey);
+
+    return new SecretKeySpec(digest.digest(), "AES");
+  }
+}
@@ -23,7 +23,6 @@
  */
 package com.hkkt.util;
 
-import com.hkkt.communication.KDC;
 import com.hkkt.communication.KDC;
 import java.io.UnsupportedEncodingException;
 import java.security.InvalidKeyException;
@@ -33,8 +32,11 @@ import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
@@ -47,10 +49,15 @@ import javax.crypto.SecretKey;
  * @author Kent Tsuenchy
  */
 public class Encryptor {
+  public static final CRYPTO_SUITE DEFAULT_CRYPTO_SUITE = CRYPTO_SUITE.RSA;
+  public static final ENCRYPTION_MODE DEFAULT_ENCRYPTION_MODE = ENCRYPTION_MODE.SESSION;
+  private static final CipherPool CIPHERS = CipherPool.getInstance();
   private static Encryptor instance;
-  private static KeyPairGenerator pairKeyGen;
+  private static ConcurrentHashMap<String, KeyPairGenerator> pairKeyGens;
   private static KeyGenerator sharedKeyGen;
   private static KDC kdc;
+  private volatile CRYPTO_SUITE cryptoSuite = DEFAULT_CRYPTO_SUITE;
+  private volatile KeyPairPool keyPairPool;
 
   public static Encryptor getInstance() throws NoSuchAlgorithmException {
     if (instance == null)
@@ -61,78 +68,334 @@ public class Encryptor {
 
   private Encryptor() throws NoSuchAlgorithmException {
     sharedKeyGen = KeyGenerator.getInstance("DES");
-    pairKeyGen = KeyPairGenerator.getInstance("RSA");
-    pairKeyGen.initialize(2048);
+    pairKeyGens = new ConcurrentHashMap<>();
+
+    for (CRYPTO_SUITE suite : CRYPTO_SUITE.values()) {
+      addKeyPairGenerator(suite.getKeyAlgorithm(), suite.getKeySize());
+      addKeyPairGenerator(suite.getSigningKeyAlgorithm(), suite.getSigningKeySize());
+    }
+
     kdc = KDC.getInstance();
   }
 
   public Key decryptKey(byte[] sharedKey, Key key, String algorithm, int keyType) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, UnsupportedEncodingException, IllegalBlockSizeException, BadPaddingException {
     List acceptableKeyTypes = Arrays.asList(Cipher.PRIVATE_KEY, Cipher.PUBLIC_KEY, Cipher.SECRET_KEY);
+    String transformation = transformationOf(key);
     Cipher cipher;
 
     if (sharedKey.length < 1 || acceptableKeyTypes.indexOf(keyType) < 0)
       return null;
 
-    if (key instanceof SecretKey)
-      cipher = Cipher.getInstance(KDC.DES_ENCRYPTION_STANDARD);
-    else if (key instanceof PublicKey || key instanceof PrivateKey)
-      cipher = Cipher.getInstance(KDC.RSA_ENCRYPTION_STANDARD);
-    else
+    if (EllipticCurveCipher.accepts(key))
+      return EllipticCurveCipher.unwrap(sharedKey, asPrivateKey(key), algorithm, keyType);
+
+    if (transformation == null)
       return null;
 
-    cipher.init(Cipher.UNWRAP_MODE, key);
+    cipher = CIPHERS.acquire(transformation);
 
-    return cipher.unwrap(sharedKey, algorithm, keyType);
+    try {
+      cipher.init(Cipher.UNWRAP_MODE, key);
+
+      return cipher.unwrap(sharedKey, algorithm, keyType);
+    } finally {
+      CIPHERS.release(cipher);
+    }
   }
 
   public byte[] encryptDecryptData(int opmode, byte[] data, Key key) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, UnsupportedEncodingException, IllegalBlockSizeException, BadPaddingException {
     List acceptableModes = Arrays.asList(Cipher.DECRYPT_MODE, Cipher.ENCRYPT_MODE);
+    String transformation = transformationOf(key);
     Cipher cipher;
 
     if (data.length < 1 || acceptableModes.indexOf(opmode) < 0)
       return null;
 
-    if (key instanceof SecretKey)
-      cipher = Cipher.getInstance(KDC.DES_ENCRYPTION_STANDARD);
-    else if (key instanceof PublicKey || key instanceof PrivateKey)
-      cipher = Cipher.getInstance(KDC.RSA_ENCRYPTION_STANDARD);
-    else
+    if (EllipticCurveCipher.accepts(key))
+      if (opmode == Cipher.ENCRYPT_MODE)
+        return EllipticCurveCipher.encrypt(data, asPublicKey(key));
+      else
+        return EllipticCurveCipher.decrypt(data, asPrivateKey(key));
+
+    if (transformation == null)
       return null;
 
-    cipher.init(opmode, key);
+    cipher = CIPHERS.acquire(transformation);
+
+    try {
+      cipher.init(opmode, key);
 
-    return cipher.doFinal(data);
+      return cipher.doFinal(data);
+    } finally {
+      CIPHERS.release(cipher);
+    }
   }
 
   public byte[] encryptKey(Key sharedKey, Key key) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, UnsupportedEncodingException, IllegalBlockSizeException, BadPaddingException {
+    String transformation = transformationOf(key);
     Cipher cipher;
 
-    if (key instanceof SecretKey)
-      cipher = Cipher.getInstance(KDC.DES_ENCRYPTION_STANDARD);
-    else if (key instanceof PublicKey || key instanceof PrivateKey)
-      cipher = Cipher.getInstance(KDC.RSA_ENCRYPTION_STANDARD);
-    else
+    if (EllipticCurveCipher.accepts(key))
+      return EllipticCurveCipher.wrap(sharedKey, asPublicKey(key));
+
+    if (transformation == null)
       return null;
 
-    cipher.init(Cipher.WRAP_MODE, key);
+    cipher = CIPHERS.acquire(transformation);
 
-    return cipher.wrap(sharedKey);
+    try {
+      cipher.init(Cipher.WRAP_MODE, key);
+
+      return cipher.wrap(sharedKey);
+    } finally {
+      CIPHERS.release(cipher);
+    }
   }
 
+  /**
+   * Key pair to encrypt with, of the current crypto suite.
+   *
+   * @return key pair from the key pair pool if one is running, otherwise generated on the caller's thread
+   */
   public KeyPair genKeyPair() {
-    return pairKeyGen.genKeyPair();
+    CRYPTO_SUITE suite = this.cryptoSuite;
+    KeyPairPool pool = this.keyPairPool;
+
+    if (pool != null && pool.getAlgorithm().equals(suite.getKeyAlgorithm()))
+      return pool.take();
+
+    return pairKeyGens.get(suite.getKeyAlgorithm()).genKeyPair();
   }
 
   public SecretKey genSharedKey() {
     return sharedKeyGen.generateKey();
   }
 
+  /**
+   * Key pair to sign with, of the current crypto suite. For RSA it can encrypt as well, an X25519 key pair cannot sign
+   * so the EC suite signs with Ed25519 key pairs.
+   *
+   * @return key pair for sign and verify
+   */
+  public KeyPair genSigningKeyPair() {
+    return pairKeyGens.get(this.cryptoSuite.getSigningKeyAlgorithm()).genKeyPair();
+  }
+
+  public CRYPTO_SUITE getCryptoSuite() {
+    return this.cryptoSuite;
+  }
+
+  /**
+   *
+   * @return pool genKeyPair takes key pairs from, null if they are generated on the caller's thread
+   */
+  public KeyPairPool getKeyPairPool() {
+    return this.keyPairPool;
+  }
+
   public SecretKey registerWithKDC(String id, PublicKey pubKey) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, UnsupportedEncodingException, BadPaddingException {
     byte[] encryptedKey = kdc.getSharedKey(id);
     SecretKey key = (SecretKey) getInstance().decryptKey(encryptedKey, kdc.getPublicKey(), "DES", Cipher.SECRET_KEY);
     encryptedKey = getInstance().encryptKey(pubKey, key);
-    kdc.addKey(id, encryptedKey);
+    kdc.addKey(id, encryptedKey, pubKey.getAlgorithm());
 
     return key;
   }
+
+  /**
+   * Select the kind of key pairs genKeyPair and genSigningKeyPair generate from now on. Keys of both suites can be used
+   * side by side, every operation follows the key it is given. A key pair pool of the previous suite is stopped.
+   *
+   * @param suite crypto suite
+   */
+  public synchronized void setCryptoSuite(CRYPTO_SUITE suite) {
+    KeyPairPool pool = this.keyPairPool;
+
+    this.cryptoSuite = suite;
+
+    if (pool != null && !pool.getAlgorithm().equals(suite.getKeyAlgorithm()))
+      this.stopKeyPairPool();
+  }
+
+  /**
+   * Sign data with a private key of either crypto suite.
+   *
+   * @param data data to sign
+   * @param key private key from genSigningKeyPair
+   * <p>
+   * @return signature, null if there is no data or the key cannot sign
+   * <p>
+   * @throws NoSuchAlgorithmException
+   * @throws InvalidKeyException
+   * @throws SignatureException
+   */
+  public byte[] sign(byte[] data, PrivateKey key) throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+    String standard = signatureStandardOf(key);
+    Signature signature;
+
+    if (data.length < 1 || standard == null)
+      return null;
+
+    signature = Signature.getInstance(standard);
+    signature.initSign(key);
+    signature.update(data);
+
+    return signature.sign();
+  }
+
+  /**
+   * Have genKeyPair take key pairs from a pool filled in the background instead of generating them on the caller's
+   * thread. Replaces a pool started before.
+   *
+   * @param capacity number of key pairs kept ready
+   * @param threads number of background threads, KeyPairPool.DEFAULT_THREADS leaves a core to the caller
+   * @param policy what genKeyPair does when the pool is empty
+   * <p>
+   * @return the new pool
+   * <p>
+   * @throws NoSuchAlgorithmException
+   */
+  public synchronized KeyPairPool startKeyPairPool(int capacity, int threads, KeyPairPool.EMPTY_POLICY policy) throws NoSuchAlgorithmException {
+    this.stopKeyPairPool();
+    this.keyPairPool = new KeyPairPool(this.cryptoSuite.getKeyAlgorithm(), this.cryptoSuite.getKeySize(), capacity, threads, policy);
+
+    return this.keyPairPool;
+  }
+
+  /**
+   * Generate key pairs on the caller's thread again.
+   */
+  public synchronized void stopKeyPairPool() {
+    KeyPairPool pool = this.keyPairPool;
+
+    this.keyPairPool = null;
+
+    if (pool != null)
+      pool.cleanup();
+  }
+
+  /**
+   * Verify a signature made with sign.
+   *
+   * @param data data that was signed
+   * @param signature signature from sign
+   * @param key public key of the signer
+   * <p>
+   * @return whether the signature is valid, false if the key cannot verify signatures
+   * <p>
+   * @throws NoSuchAlgorithmException
+   * @throws InvalidKeyException
+   * @throws SignatureException
+   */
+  public boolean verify(byte[] data, byte[] signature, PublicKey key) throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+    String standard = signatureStandardOf(key);
+    Signature verifier;
+
+    if (standard == null)
+      return false;
+
+    verifier = Signature.getInstance(standard);
+    verifier.initVerify(key);
+    verifier.update(data);
+
+    return verifier.verify(signature);
+  }
+
+  private static void addKeyPairGenerator(String algorithm, int keySize) throws NoSuchAlgorithmException {
+    KeyPairGenerator generator;
+
+    if (pairKeyGens.containsKey(algorithm))
+      return;
+
+    generator = KeyPairGenerator.getInstance(algorithm);
+    generator.initialize(keySize);
+    pairKeyGens.put(algorithm, generator);
+  }
+
+  private static PrivateKey asPrivateKey(Key key) throws InvalidKeyException {
+    if (key instanceof PrivateKey)
+      return (PrivateKey) key;
+
+    throw new InvalidKeyException("A " + key.getAlgorithm() + " public key cannot decrypt.");
+  }
+
+  private static PublicKey asPublicKey(Key key) throws InvalidKeyException {
+    if (key instanceof PublicKey)
+      return (PublicKey) key;
+
+    throw new InvalidKeyException("A " + key.getAlgorithm() + " private key cannot encrypt.");
+  }
+
+  private static String signatureStandardOf(Key key) {
+    switch (key.getAlgorithm()) {
+      case "RSA":
+        return KDC.RSA_SIGNATURE_STANDARD;
+      case "EdDSA":
+      case KDC.EC_SIGNATURE_STANDARD:
+        return KDC.EC_SIGNATURE_STANDARD;
+      default:
+        return null;
+    }
+  }
+
+  private static String transformationOf(Key key) {
+    if (key instanceof SecretKey)
+      return KDC.DES_ENCRYPTION_STANDARD;
+    else if ((key instanceof PublicKey || key instanceof PrivateKey) && "RSA".equals(key.getAlgorithm()))
+      return KDC.RSA_ENCRYPTION_STANDARD;
+
+    return null;
+  }
+
+  /**
+   * Kinds of key pairs principals can have.
+   */
+  public static enum CRYPTO_SUITE {
+    /**
+     * RSA-2048 key pairs to encrypt and to sign with SHA256withRSA.
+     */
+    RSA("RSA", 2048, "RSA", 2048),
+    /**
+     * X25519 key pairs to encrypt through an EllipticCurveCipher, Ed25519 key pairs to sign. Far cheaper to generate
+     * and to decrypt with than RSA.
+     */
+    EC(KDC.EC_KEY_AGREEMENT_STANDARD, 255, KDC.EC_SIGNATURE_STANDARD, 255);
+
+    private final String KEY_ALGORITHM;
+    private final int KEY_SIZE;
+    private final String SIGNING_KEY_ALGORITHM;
+    private final int SIGNING_KEY_SIZE;
+
+    private CRYPTO_SUITE(String keyAlgorithm, int keySize, String signingKeyAlgorithm, int signingKeySize) {
+      this.KEY_ALGORITHM = keyAlgorithm;
+      this.KEY_SIZE = keySize;
+      this.SIGNING_KEY_ALGORITHM = signingKeyAlgorithm;
+      this.SIGNING_KEY_SIZE = signingKeySize;
+    }
+
+    public String getKeyAlgorithm() {
+      return this.KEY_ALGORITHM;
+    }
+
+    public int getKeySize() {
+      return this.KEY_SIZE;
+    }
+
+    public String getSigningKeyAlgorithm() {
+      return this.SIGNING_KEY_ALGORITHM;
+    }
+
+    public int getSigningKeySize() {
+      return this.SIGNING_KEY_SIZE;
+    }
+  }
+
+  /**
+   * How principals encrypt the data they exchange. RSA encrypts every datagram with the public key of the receiver,
+   * SESSION only uses the public key to set up a SecureSession per connection. Either works with keys of both crypto
+   * suites.
+   */
+  public static enum ENCRYPTION_MODE {
+    RSA, SESSION
+  }
 }
@@ -0,0 +1,224 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019 Hassan Khan, Kent Tsuenchy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.hkkt.util;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Key pairs generated ahead of time by background threads. Generating an RSA key pair takes long enough to dominate
+ * setting up a principal, the pool moves that work off the caller's thread onto otherwise idle cores and keeps up to
+ * a given number of pairs ready. Once the pool runs dry the policy decides whether the caller waits for the next pair
+ * or generates one itself.
+ *
+ * @author Kent Tsuenchy
+ */
+public class KeyPairPool {
+  public static final int DEFAULT_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+  private static final long POLL_MILLIS = 100;
+
+  private final String ALGORITHM;
+  private final int CAPACITY;
+  private final AtomicLong GENERATED;
+  private final AtomicLong GENERATION_NANOS;
+  private final ThreadLocal<KeyPairGenerator> GENERATORS;
+  private final AtomicLong HITS;
+  private final AtomicLong MISSES;
+  private final EMPTY_POLICY POLICY;
+  private final LinkedBlockingQueue<KeyPair> READY;
+  private final long STARTED;
+  private final List<Thread> WORKERS;
+  private volatile boolean running = true;
+
+  /**
+   *
+   * @param algorithm key pair algorithm, e.g. RSA
+   * @param keySize key size the generators are initialized with
+   * @param capacity number of key pairs kept ready
+   * @param threads number of background threads generating key pairs
+   * @param policy what a caller does when no key pair is ready
+   * <p>
+   * @throws NoSuchAlgorithmException
+   */
+  public KeyPairPool(String algorithm, int keySize, int capacity, int threads, EMPTY_POLICY policy) throws NoSuchAlgorithmException {
+    // fail here rather than in every thread
+    KeyPairGenerator.getInstance(algorithm);
+
+    this.ALGORITHM = algorithm;
+    this.CAPACITY = Math.max(1, capacity);
+    this.GENERATED = new AtomicLong(0);
+    this.GENERATION_NANOS = new AtomicLong(0);
+    // a generator is not meant to be shared between threads
+    this.GENERATORS = ThreadLocal.withInitial(() -> {
+      try {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance(algorithm);
+        generator.initialize(keySize);
+
+        return generator;
+      } catch (NoSuchAlgorithmException ex) {
+        throw new IllegalStateException(ex);
+      }
+    });
+    this.HITS = new AtomicLong(0);
+    this.MISSES = new AtomicLong(0);
+    this.POLICY = policy;
+    this.READY = new LinkedBlockingQueue<>(this.CAPACITY);
+    this.STARTED = System.nanoTime();
+    this.WORKERS = new ArrayList<>();
+
+    for (int i = 0; i < Math.max(1, threads); i++) {
+      Thread worker = new Thread(this::fill, KeyPairPool.class.getSimpleName() + "-" + algorithm + "-" + (i + 1));
+
+      // only meant to use cycles nothing else wants
+      worker.setDaemon(true);
+      worker.setPriority(Thread.MIN_PRIORITY);
+      this.WORKERS.add(worker);
+      worker.start();
+    }
+  }
+
+  /**
+   *
+   */
+  public void cleanup() {
+    this.running = false;
+    this.WORKERS.forEach(Thread::interrupt);
+    this.READY.clear();
+  }
+
+  public String getAlgorithm() {
+    return this.ALGORITHM;
+  }
+
+  /**
+   * Average time a background thread takes to generate a key pair.
+   *
+   * @return nanoseconds
+   */
+  public long getAverageGenerationTime() {
+    long generated = this.GENERATED.get();
+
+    return generated == 0 ? 0 : this.GENERATION_NANOS.get() / generated;
+  }
+
+  public int getCapacity() {
+    return this.CAPACITY;
+  }
+
+  public int getDepth() {
+    return this.READY.size();
+  }
+
+  public long getGenerated() {
+    return this.GENERATED.get();
+  }
+
+  /**
+   * Key pairs generated by the background threads per second since the pool was started. The threads rest while the
+   * pool is full, so this is at most the rate the pool can sustain.
+   *
+   * @return key pairs per second
+   */
+  public double getGenerationRate() {
+    long elapsed = System.nanoTime() - this.STARTED;
+
+    return elapsed == 0 ? 0 : this.GENERATED.get() * 1e9 / elapsed;
+  }
+
+  public long getHits() {
+    return this.HITS.get();
+  }
+
+  public long getMisses() {
+    return this.MISSES.get();
+  }
+
+  /**
+   * Get a key pair, each one is handed out once.
+   *
+   * @return key pair from the pool, or one generated or waited for according to the policy if the pool is empty
+   */
+  public KeyPair take() {
+    KeyPair pair = this.READY.poll();
+
+    if (pair != null) {
+      this.HITS.incrementAndGet();
+
+      return pair;
+    }
+
+    this.MISSES.incrementAndGet();
+
+    if (this.POLICY == EMPTY_POLICY.WAIT)
+      try {
+        // checks now and then, nothing would fill the pool after cleanup
+        while (pair == null && this.running)
+          pair = this.READY.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+
+    return pair == null ? this.GENERATORS.get().genKeyPair() : pair;
+  }
+
+  @Override
+  public String toString() {
+    return KeyPairPool.class.getSimpleName() + "[" + this.ALGORITHM + ", depth=" + this.getDepth() + "/" + this.CAPACITY + ", generated=" + this.getGenerated() + ", hits=" + this.getHits() + ", misses=" + this.getMisses() + "]";
+  }
+
+  private void fill() {
+    KeyPairGenerator generator = this.GENERATORS.get();
+
+    try {
+      while (this.running) {
+        long started = System.nanoTime();
+        KeyPair pair = generator.genKeyPair();
+
+        this.GENERATION_NANOS.addAndGet(System.nanoTime() - started);
+        this.GENERATED.incrementAndGet();
+        // waits while the pool is full
+        this.READY.put(pair);
+      }
+    } catch (InterruptedException ex) {
+      // stopped by cleanup
+    }
+  }
+
+  public static enum EMPTY_POLICY {
+    /**
+     * Generate a key pair on the caller's thread.
+     */
+    GENERATE,
+    /**
+     * Wait for a background thread to generate the next key pair.
+     */
+    WAIT
+  }
+}
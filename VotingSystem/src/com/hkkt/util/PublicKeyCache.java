@@ -0,0 +1,202 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019 Hassan Khan, Kent Tsuenchy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.hkkt.util;
+
+import com.hkkt.communication.KDC;
+import java.io.UnsupportedEncodingException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+
+/**
+ * Public keys a principal has resolved through the KDC. Getting a key from the KDC costs a wrap on the KDC side and an
+ * unwrap on ours, so each key is resolved once and kept until it expires, is evicted as least recently used, or is
+ * removed or replaced in the KDC.
+ *
+ * @author Kent Tsuenchy
+ */
+public class PublicKeyCache {
+  public static final int DEFAULT_MAX_KEYS = 1 << 17;
+  public static final long DEFAULT_TTL_MILLIS = 600000;
+  private final AtomicLong EVICTIONS;
+  private final AtomicLong HITS;
+  private final SecretKey KDC_COMM_KEY;
+  private final LinkedHashMap<String, Entry> KEYS;
+  private final AtomicLong MISSES;
+  private final String REQUESTER;
+  private final long TTL_NANOS;
+
+  /**
+   *
+   * @param requester name the principal is registered with at the KDC
+   * @param kdcCommKey key shared with the KDC, returned by Encryptor.registerWithKDC
+   */
+  public PublicKeyCache(String requester, SecretKey kdcCommKey) {
+    this(requester, kdcCommKey, DEFAULT_MAX_KEYS, DEFAULT_TTL_MILLIS);
+  }
+
+  /**
+   *
+   * @param requester name the principal is registered with at the KDC
+   * @param kdcCommKey key shared with the KDC, returned by Encryptor.registerWithKDC
+   * @param maxKeys number of keys kept, the least recently used key is evicted beyond that
+   * @param ttlMillis time a key is kept after it was resolved, 0 keeps it until it is evicted or changes in the KDC
+   */
+  public PublicKeyCache(String requester, SecretKey kdcCommKey, int maxKeys, long ttlMillis) {
+    this.EVICTIONS = new AtomicLong(0);
+    this.HITS = new AtomicLong(0);
+    this.KDC_COMM_KEY = kdcCommKey;
+    this.KEYS = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        boolean evict = this.size() > maxKeys;
+
+        if (evict)
+          EVICTIONS.incrementAndGet();
+
+        return evict;
+      }
+    };
+    this.MISSES = new AtomicLong(0);
+    this.REQUESTER = requester;
+    this.TTL_NANOS = ttlMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(ttlMillis) : Long.MAX_VALUE;
+  }
+
+  /**
+   * Public key of a principal, resolved through the KDC if it is not cached.
+   *
+   * @param id name of the principal
+   * <p>
+   * @return public key, null if the KDC has no key for the principal
+   * <p>
+   * @throws NoSuchAlgorithmException
+   * @throws NoSuchPaddingException
+   * @throws InvalidKeyException
+   * @throws IllegalBlockSizeException
+   * @throws UnsupportedEncodingException
+   * @throws BadPaddingException
+   */
+  public PublicKey get(String id) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, UnsupportedEncodingException, BadPaddingException {
+    // read before resolving, a key replaced meanwhile is cached under the old version and resolved again next time
+    long version = KDC.getInstance().getKeyVersion(id);
+    long now = System.nanoTime();
+    PublicKey key;
+    Entry entry;
+
+    synchronized (this.KEYS) {
+      entry = this.KEYS.get(id);
+    }
+
+    if (entry != null && entry.VERSION == version && now - entry.RESOLVED < this.TTL_NANOS) {
+      this.HITS.incrementAndGet();
+
+      return entry.KEY;
+    }
+
+    this.MISSES.incrementAndGet();
+    key = this.resolve(id);
+
+    synchronized (this.KEYS) {
+      if (key == null)
+        this.KEYS.remove(id);
+      else
+        this.KEYS.put(id, new Entry(key, version, now));
+    }
+
+    return key;
+  }
+
+  public long getEvictions() {
+    return this.EVICTIONS.get();
+  }
+
+  /**
+   * Share of lookups that did not have to go to the KDC.
+   *
+   * @return hit rate between 0 and 1
+   */
+  public double getHitRate() {
+    long hits = this.HITS.get();
+    long lookups = hits + this.MISSES.get();
+
+    return lookups == 0 ? 0 : (double) hits / lookups;
+  }
+
+  public long getHits() {
+    return this.HITS.get();
+  }
+
+  public long getMisses() {
+    return this.MISSES.get();
+  }
+
+  public void invalidate(String id) {
+    synchronized (this.KEYS) {
+      this.KEYS.remove(id);
+    }
+  }
+
+  public void invalidateAll() {
+    synchronized (this.KEYS) {
+      this.KEYS.clear();
+    }
+  }
+
+  public int size() {
+    synchronized (this.KEYS) {
+      return this.KEYS.size();
+    }
+  }
+
+  private PublicKey resolve(String id) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, UnsupportedEncodingException, BadPaddingException {
+    String algorithm = KDC.getInstance().getKeyAlgorithm(id);
+    byte[] encryptedKey = KDC.getInstance().getKey(this.REQUESTER, id);
+
+    if (algorithm == null || encryptedKey == null)
+      return null;
+
+    return (PublicKey) Encryptor.getInstance().decryptKey(encryptedKey, this.KDC_COMM_KEY, algorithm, Cipher.PUBLIC_KEY);
+  }
+
+  private static class Entry {
+    private final PublicKey KEY;
+    private final long RESOLVED;
+    private final long VERSION;
+
+    Entry(PublicKey key, long version, long resolved) {
+      this.KEY = key;
+      this.RESOLVED = resolved;
+      this.VERSION = version;
+    }
+  }
+}
@@ -0,0 +1,281 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019 Hassan Khan, Kent Tsuenchy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.hkkt.util;
+
+import com.hkkt.communication.Datagram;
+import com.hkkt.communication.KDC;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.interfaces.RSAKey;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * AES-GCM session between a client and a server. The client picks the session key and sends it in its UPDATE_ID
+ * datagram, wrapped with the RSA public key of the server, followed by its name sealed with the session key. After that
+ * both sides seal data with the session key, which is far cheaper than an RSA operation per datagram and has no limit
+ * on the data length.
+ * <p>
+ * The handshake is always longer than an RSA block, a plain RSA encrypted name is exactly one block, so a server can
+ * tell the two apart and serve clients of both kinds. With an elliptic curve key the wrapped session key fails to
+ * authenticate when the client sent a plain encrypted name.
+ * <p>
+ * Data sealed for a datagram is bound to the header of the datagram (see associatedData), so it cannot be replayed
+ * under another type or between other parties.
+ *
+ * @author Kent Tsuenchy
+ */
+public class SecureSession {
+  public static final int IV_LENGTH = 12;
+  public static final int KEY_LENGTH = 32;
+  public static final int TAG_LENGTH = 16;
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  /**
+   * Open the session a client started.
+   *
+   * @param handshake data of the UPDATE_ID datagram of the client
+   * @param key private key of the server
+   * <p>
+   * @return session, null if the client did not start one and sent its name encrypted with the public key instead
+   * <p>
+   * @throws NoSuchAlgorithmException
+   * @throws NoSuchPaddingException
+   * @throws InvalidKeyException
+   * @throws UnsupportedEncodingException
+   * @throws IllegalBlockSizeException
+   * @throws BadPaddingException
+   */
+  public static SecureSession accept(byte[] handshake, PrivateKey key) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, UnsupportedEncodingException, IllegalBlockSizeException, BadPaddingException {
+    int wrappedKeyLength = wrappedKeyLength(key);
+    byte[] wrappedKey;
+
+    if (handshake.length <= wrappedKeyLength)
+      return null;
+
+    wrappedKey = new byte[wrappedKeyLength];
+    System.arraycopy(handshake, 0, wrappedKey, 0, wrappedKeyLength);
+
+    try {
+      return new SecureSession((SecretKey) Encryptor.getInstance().decryptKey(wrappedKey, key, "AES", Cipher.SECRET_KEY), wrappedKeyLength);
+    } catch (AEADBadTagException ex) {
+      // a name encrypted with an elliptic curve key has no fixed length, it fails authentication instead
+      return null;
+    }
+  }
+
+  /**
+   * Header fields a datagram's sealed data is bound to. Both sides have to build it from the same values.
+   *
+   * @param type operation or type of the datagram
+   * @param sender name of the sender
+   * @param receiver name of the receiver
+   * <p>
+   * @return associated data for seal and open
+   * <p>
+   * @throws UnsupportedEncodingException
+   */
+  public static byte[] associatedData(String type, String sender, String receiver) throws UnsupportedEncodingException {
+    byte[][] fields = {type.getBytes(Datagram.STRING_ENCODING), sender.getBytes(Datagram.STRING_ENCODING), receiver.getBytes(Datagram.STRING_ENCODING)};
+    ByteBuffer data = ByteBuffer.allocate(fields.length * Integer.BYTES + fields[0].length + fields[1].length + fields[2].length);
+
+    // every field is length prefixed so that no two headers give the same bytes
+    for (byte[] field : fields)
+      data.putInt(field.length).put(field);
+
+    return data.array();
+  }
+
+  /**
+   * Start a session with a new random key.
+   *
+   * @return session, its handshake still has to be sent
+   */
+  public static SecureSession create() {
+    byte[] key = new byte[KEY_LENGTH];
+
+    RANDOM.nextBytes(key);
+
+    return new SecureSession(new SecretKeySpec(key, "AES"), 0);
+  }
+
+  /**
+   * Start a session with a key both sides already have.
+   */
+  static SecureSession of(SecretKey key) {
+    return new SecureSession(key, 0);
+  }
+
+  private static int wrappedKeyLength(Key key) {
+    if (EllipticCurveCipher.accepts(key))
+      return EllipticCurveCipher.WRAPPED_KEY_LENGTH;
+
+    return key instanceof RSAKey ? (((RSAKey) key).getModulus().bitLength() + 7) / 8 : 0;
+  }
+
+  private final int HANDSHAKE_OFFSET;
+  private final SecretKey KEY;
+
+  private SecureSession(SecretKey key, int handshakeOffset) {
+    this.HANDSHAKE_OFFSET = handshakeOffset;
+    this.KEY = key;
+  }
+
+  /**
+   * Data for the UPDATE_ID datagram that starts the session.
+   *
+   * @param name name the client is registering, sealed with the session key
+   * @param key public key of the server
+   * <p>
+   * @return session key wrapped with the public key, followed by the sealed name
+   * <p>
+   * @throws NoSuchAlgorithmException
+   * @throws NoSuchPaddingException
+   * @throws InvalidKeyException
+   * @throws UnsupportedEncodingException
+   * @throws IllegalBlockSizeException
+   * @throws BadPaddingException
+   */
+  public byte[] handshake(byte[] name, PublicKey key) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, UnsupportedEncodingException, IllegalBlockSizeException, BadPaddingException {
+    byte[] wrappedKey = Encryptor.getInstance().encryptKey(this.KEY, key);
+    byte[] sealedName = this.seal(name, null);
+    byte[] handshake = new byte[wrappedKey.length + sealedName.length];
+
+    System.arraycopy(wrappedKey, 0, handshake, 0, wrappedKey.length);
+    System.arraycopy(sealedName, 0, handshake, wrappedKey.length, sealedName.length);
+
+    return handshake;
+  }
+
+  /**
+   * Decrypt and authenticate sealed data.
+   *
+   * @param sealed data sealed by the other side of the session
+   * @param associatedData the associated data it was sealed with
+   * <p>
+   * @return plain data
+   * <p>
+   * @throws NoSuchAlgorithmException
+   * @throws NoSuchPaddingException
+   * @throws InvalidKeyException
+   * @throws IllegalBlockSizeException
+   * @throws BadPaddingException if the data was not sealed with the session key and associated data or has been
+   * tampered with
+   */
+  public byte[] open(byte[] sealed, byte[] associatedData) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+    return this.open(sealed, 0, associatedData);
+  }
+
+  /**
+   * Name the client sealed into its handshake, only for sessions opened with accept.
+   *
+   * @param handshake data of the UPDATE_ID datagram the session was accepted from
+   * <p>
+   * @return plain name
+   * <p>
+   * @throws NoSuchAlgorithmException
+   * @throws NoSuchPaddingException
+   * @throws InvalidKeyException
+   * @throws IllegalBlockSizeException
+   * @throws BadPaddingException
+   */
+  public byte[] openHandshake(byte[] handshake) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+    return this.open(handshake, this.HANDSHAKE_OFFSET, null);
+  }
+
+  /**
+   * Encrypt data with the session key, the result carries its own IV and authentication tag.
+   *
+   * @param data plain data of any length
+   * @param associatedData data authenticated along with it but not sent, null for none
+   * <p>
+   * @return IV followed by the encrypted data and tag
+   * <p>
+   * @throws NoSuchAlgorithmException
+   * @throws NoSuchPaddingException
+   * @throws InvalidKeyException
+   * @throws IllegalBlockSizeException
+   * @throws BadPaddingException
+   */
+  public byte[] seal(byte[] data, byte[] associatedData) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+    Cipher cipher = CipherPool.getInstance().acquire(KDC.AES_GCM_ENCRYPTION_STANDARD);
+    byte[] sealed = new byte[IV_LENGTH + data.length + TAG_LENGTH];
+
+    // a GCM IV must never repeat for a key, 96 random bits make that vanishingly unlikely
+    RANDOM.nextBytes(sealed);
+
+    try {
+      cipher.init(Cipher.ENCRYPT_MODE, this.KEY, new GCMParameterSpec(TAG_LENGTH * 8, sealed, 0, IV_LENGTH));
+
+      if (associatedData != null)
+        cipher.updateAAD(associatedData);
+
+      cipher.doFinal(data, 0, data.length, sealed, IV_LENGTH);
+    } catch (InvalidAlgorithmParameterException | ShortBufferException ex) {
+      // the parameters and output length are fixed
+      throw new IllegalStateException(ex);
+    } finally {
+      CipherPool.getInstance().release(cipher);
+    }
+
+    return sealed;
+  }
+
+  byte[] open(byte[] sealed, int offset, byte[] associatedData) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+    Cipher cipher;
+
+    if (sealed.length - offset < IV_LENGTH + TAG_LENGTH)
+      throw new IllegalBlockSizeException("Sealed data is too short.");
+
+    cipher = CipherPool.getInstance().acquire(KDC.AES_GCM_ENCRYPTION_STANDARD);
+
+    try {
+      cipher.init(Cipher.DECRYPT_MODE, this.KEY, new GCMParameterSpec(TAG_LENGTH * 8, sealed, offset, IV_LENGTH));
+
+      if (associatedData != null)
+        cipher.updateAAD(associatedData);
+
+      return cipher.doFinal(sealed, offset + IV_LENGTH, sealed.length - offset - IV_LENGTH);
+    } catch (InvalidAlgorithmParameterException ex) {
+      // the tag length is fixed
+      throw new IllegalStateException(ex);
+    } finally {
+      CipherPool.getInstance().release(cipher);
+    }
+  }
+}
@@ -23,13 +23,42 @@
  */
 package com.hkkt.votingsystem;
 
+import com.hkkt.communication.Connection;
 import com.hkkt.communication.Datagram;
+import com.hkkt.communication.DatagramView;
 
 /**
  *
  * @author Kent Tsuenchy
  */
 public abstract class AbstractServer {
-  public abstract void handleDatagram(Datagram datagram);
-  public abstract void updateConnectionName(String name, Datagram datagram);
+  /**
+   * Check a received datagram before it is copied out of the receive buffer, datagrams that are not accepted are
+   * dropped without being handed to handleDatagram.
+   *
+   * @param datagram view of the datagram, only valid during the call
+   * <p>
+   * @return true if the datagram should be handled
+   */
+  public boolean accepts(DatagramView datagram) {
+    return true;
+  }
+
+  /**
+   * Called once a client connection has been closed, after it has been removed from the server.
+   *
+   * @param connection closed connection, its name is the one it had when it was closed
+   */
+  public void connectionClosed(Connection connection) {
+  }
+
+  /**
+   * Handle a datagram sent to the server. The connection it arrived on identifies the client, unlike the sender named
+   * in the datagram, which the client chose.
+   *
+   * @param connection connection the datagram arrived on
+   * @param datagram received datagram
+   */
+  public abstract void handleDatagram(Connection connection, Datagram datagram);
+  public abstract void updateConnectionName(Connection connection, Datagram datagram);
 }
@@ -27,18 +27,17 @@ import com.hkkt.communication.ChannelSelectorCannotStartException;
 import com.hkkt.communication.ClientConnectionManager;
 import com.hkkt.communication.Datagram;
 import com.hkkt.communication.DatagramMissingSenderReceiverException;
+import com.hkkt.communication.ServerConnectionManager;
 import com.hkkt.util.Encryptor;
-import com.hkkt.communication.KDC;
-import com.hkkt.util.Hook;
+import com.hkkt.util.PublicKeyCache;
+import com.hkkt.util.SecureSession;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.InetSocketAddress;
 import java.security.InvalidKeyException;
 import java.security.KeyPair;
 import java.security.NoSuchAlgorithmException;
-import java.security.PublicKey;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
@@ -59,136 +58,47 @@ public class Voter {
   private static final Logger LOG = Logger.getLogger(Voter.class.getName());
 
   private final ClientConnectionManager CLA_CONN;
-  private final Hook CLA_HOOK;
   private final String CLA_NAME;
+  private final SecureSession CLA_SESSION;
   private final ClientConnectionManager CTF_CONN;
-  private final Hook CTF_HOOK;
   private final String CTF_NAME;
+  private final SecureSession CTF_SESSION;
   private final KeyPair ENCRYPTION_KEYS;
   private final String ID;
   private final SecretKey KDC_COMM_KEY;
+  private final PublicKeyCache PUBLIC_KEYS;
   private final ConcurrentHashMap<VotingDatagram.ACTION_TYPE, List<Runnable>> TASKS;
   private final int VOTING_ID;
-  private boolean requestInProgress;
-  private int validationNum;
-  private boolean voteSubmitted = false;
+  private volatile int validationNum;
+  private volatile boolean voteSubmitted = false;
 
   public Voter(String id, InetSocketAddress claAddress, InetSocketAddress ctfAddress, String claName, String ctfName) throws IOException, ChannelSelectorCannotStartException, DatagramMissingSenderReceiverException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, UnsupportedEncodingException, BadPaddingException {
+    this(id, claAddress, ctfAddress, claName, ctfName, Encryptor.DEFAULT_ENCRYPTION_MODE);
+  }
+
+  public Voter(String id, InetSocketAddress claAddress, InetSocketAddress ctfAddress, String claName, String ctfName, Encryptor.ENCRYPTION_MODE mode) throws IOException, ChannelSelectorCannotStartException, DatagramMissingSenderReceiverException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, UnsupportedEncodingException, BadPaddingException {
     this.ID = id;
     this.VOTING_ID = (int) (Math.random() * Integer.MAX_VALUE);
     this.TASKS = new ConcurrentHashMap<>();
 
     this.ENCRYPTION_KEYS = Encryptor.getInstance().genKeyPair();
     this.KDC_COMM_KEY = Encryptor.getInstance().registerWithKDC(id, this.ENCRYPTION_KEYS.getPublic());
+    this.PUBLIC_KEYS = new PublicKeyCache(id, this.KDC_COMM_KEY);
 
     this.CLA_NAME = claName;
     this.CTF_NAME = ctfName;
 
-    byte[] encryptedId = this.encryptData(id.getBytes(Datagram.STRING_ENCODING), claName);
-    this.CLA_CONN = new ClientConnectionManager(id, encryptedId, claAddress);
-    encryptedId = this.encryptData(id.getBytes(Datagram.STRING_ENCODING), ctfName);
-    this.CTF_CONN = new ClientConnectionManager(id, encryptedId, ctfAddress);
-
-    this.CLA_HOOK = new Hook() {
-      private VotingDatagram data;
-
-      @Override
-      public void run() {
-        try {
-          boolean error = false;
-          VotingDatagram.ACTION_TYPE action = this.data.getOperationType();
-          // System.out.println(ID + " received message from " + this.data.getSender() + ": " + this.data.getData());
-
-          switch (action) {
-            case REQUEST_VALIDATION_NUM:
-              String decryptedData = new String(decryptData(this.data.getData()), Datagram.STRING_ENCODING);
-
-              System.out.println("Received encrypted validation number from CLA for " + ID + ":\n" + new String(this.data.getData(), Datagram.STRING_ENCODING));
-              System.out.println(ID + " decrypted validation number: " + decryptedData);
-
-              validationNum = Integer.parseInt(decryptedData);
-              CLA_CONN.cleanup();
-              break;
-            default:
-              String errorMsg = "Unknown response. " + ID + " cannot handle the response obtained from CLA.";
-              error = true;
-              LOG.log(Level.SEVERE, errorMsg);
-              break;
-          }
-
-          if (!error && TASKS.containsKey(action)) {
-            TASKS.get(action).forEach(task -> task.run());
-            TASKS.remove(action);
-          }
-        } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | IllegalBlockSizeException | BadPaddingException | UnsupportedEncodingException ex) {
-          Logger.getLogger(Voter.class.getName()).log(Level.SEVERE, null, ex);
-        }
-
-        requestInProgress = false;
-      }
-
-      @Override
-      public void setHookData(Object data) {
-        if (data instanceof Datagram)
-          try {
-            this.data = new VotingDatagram((Datagram) data);
-          } catch (DatagramMissingSenderReceiverException ex) {
-            LOG.log(Level.SEVERE, null, ex);
-          }
-      }
-    };
-
-    this.CTF_HOOK = new Hook() {
-      private VotingDatagram data;
-
-      @Override
-      public void run() {
-        try {
-          boolean error = false;
-          VotingDatagram.ACTION_TYPE action = this.data.getOperationType();
-          // System.out.println(ID + " received message from " + this.data.getSender() + ": " + this.data.getData());
-
-          switch (action) {
-            case SUBMIT_VOTE:
-              String decryptedData = new String(decryptData(this.data.getData()), Datagram.STRING_ENCODING);
-              voteSubmitted = Boolean.parseBoolean(decryptedData);
-
-              if (voteSubmitted)
-                CTF_CONN.cleanup();
-              break;
-            default:
-              String errorMsg = "Unknown response. " + ID + " cannot handle the response obtained from CTF.";
-              error = true;
-              LOG.log(Level.SEVERE, errorMsg);
-              break;
-          }
-
-          if (!error && TASKS.containsKey(action)) {
-            TASKS.get(action).forEach(task -> task.run());
-            TASKS.remove(action);
-          }
-        } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | IllegalBlockSizeException | BadPaddingException | UnsupportedEncodingException ex) {
-          Logger.getLogger(Voter.class.getName()).log(Level.SEVERE, null, ex);
-        }
-
-        requestInProgress = false;
-      }
-
-      @Override
-      public void setHookData(Object data) {
-        if (data instanceof Datagram)
-          try {
-            this.data = new VotingDatagram((Datagram) data);
-          } catch (DatagramMissingSenderReceiverException ex) {
-            LOG.log(Level.SEVERE, null, ex);
-          }
-      }
-    };
-
-    this.CLA_CONN.addHook(CLA_HOOK);
-    this.CTF_CONN.addHook(CTF_HOOK);
-
-    this.requestInProgress = true;
+    if (mode == Encryptor.ENCRYPTION_MODE.SESSION) {
+      this.CLA_SESSION = SecureSession.create();
+      this.CTF_SESSION = SecureSession.create();
+    } else {
+      this.CLA_SESSION = null;
+      this.CTF_SESSION = null;
+    }
+
+    byte[] idBytes = id.getBytes(Datagram.STRING_ENCODING);
+    this.CLA_CONN = new ClientConnectionManager(id, this.handshake(idBytes, claName, this.CLA_SESSION), claAddress);
+    this.CTF_CONN = new ClientConnectionManager(id, this.handshake(idBytes, ctfName, this.CTF_SESSION), ctfAddress);
   }
 
   public void cleanup() {
@@ -213,9 +123,7 @@ public class Voter {
   public int hashCode() {
     int hash = 17;
     hash = 67 * hash + Objects.hashCode(this.CLA_CONN);
-    hash = 67 * hash + Objects.hashCode(this.CLA_HOOK);
     hash = 67 * hash + Objects.hashCode(this.CTF_CONN);
-    hash = 67 * hash + Objects.hashCode(this.CTF_HOOK);
     hash = 67 * hash + Objects.hashCode(this.ID);
     hash = 67 * hash + Objects.hashCode(this.VOTING_ID);
     hash = 67 * hash + Objects.hashCode(this.validationNum);
@@ -223,7 +131,7 @@ public class Voter {
   }
 
   public boolean isBusy() {
-    return this.requestInProgress;
+    return this.CLA_CONN.getPendingRequests() > 0 || this.CTF_CONN.getPendingRequests() > 0;
   }
 
   public boolean isVoteSubmitted() {
@@ -232,11 +140,12 @@ public class Voter {
 
   public void submitVote(String vote) throws DatagramMissingSenderReceiverException, UnsupportedEncodingException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
     String data = this.VOTING_ID + " " + this.validationNum + " " + vote;
-    byte[] encryptedData = this.encryptData(data.getBytes(Datagram.STRING_ENCODING), this.CTF_NAME);
+    byte[] request = SecureSession.associatedData(VotingDatagram.ACTION_TYPE.SUBMIT_VOTE.toString(), this.ID, ServerConnectionManager.SERVER_NAME);
+    byte[] encryptedData = this.encryptData(data.getBytes(Datagram.STRING_ENCODING), this.CTF_NAME, this.CTF_SESSION, request);
 
     System.out.println(this.ID + " submitting vote to CTF with data as:\n" + data + "\nand encrypted data as:\n" + new String(encryptedData, Datagram.STRING_ENCODING));
 
-    this.CTF_CONN.sendRequest(VotingDatagram.ACTION_TYPE.SUBMIT_VOTE.toString(), null, encryptedData);
+    this.CTF_CONN.sendRequest(VotingDatagram.ACTION_TYPE.SUBMIT_VOTE.toString(), null, encryptedData).thenAccept(this::receiveVoteReceipt).whenComplete(this::logFailure);
   }
 
   public void submitVote(int vote) throws DatagramMissingSenderReceiverException, UnsupportedEncodingException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
@@ -244,28 +153,94 @@ public class Voter {
   }
 
   public void requestForValidationNum() throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, UnsupportedEncodingException, BadPaddingException, DatagramMissingSenderReceiverException {
-    byte[] encryptedId = this.encryptData(this.ID.getBytes(Datagram.STRING_ENCODING), this.CLA_NAME);
+    byte[] request = SecureSession.associatedData(VotingDatagram.ACTION_TYPE.REQUEST_VALIDATION_NUM.toString(), this.ID, ServerConnectionManager.SERVER_NAME);
+    byte[] encryptedId = this.encryptData(this.ID.getBytes(Datagram.STRING_ENCODING), this.CLA_NAME, this.CLA_SESSION, request);
 
     System.out.println(this.ID + " sending request to CLA for validation number with data encrypted:\n" + new String(encryptedId, Datagram.STRING_ENCODING));
 
-    this.CLA_CONN.sendRequest(VotingDatagram.ACTION_TYPE.REQUEST_VALIDATION_NUM.toString(), null, encryptedId);
+    this.CLA_CONN.sendRequest(VotingDatagram.ACTION_TYPE.REQUEST_VALIDATION_NUM.toString(), null, encryptedId).thenAccept(this::receiveValidationNum).whenComplete(this::logFailure);
   }
 
   public void whenFree(Runnable task, VotingDatagram.ACTION_TYPE action) {
     this.TASKS.computeIfAbsent(action, key -> Collections.synchronizedList(new ArrayList<>())).add(task);
   }
 
-  private byte[] decryptData(byte[] encryptedData) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, UnsupportedEncodingException, IllegalBlockSizeException, BadPaddingException {
-    // length of encrypted data is 256, but in datagram the data (bytes) gets converted to string and length limit
-    // is applied to string instead of bytes, string limit is 300 currently (trimming causes the byte data to be
-    // malformed since some of those bytes at start/end may look like spaces in string format)
-    byte[] data = Arrays.copyOf(encryptedData, 256);
-    return Encryptor.getInstance().encryptDecryptData(Cipher.DECRYPT_MODE, data, this.ENCRYPTION_KEYS.getPrivate());
+  private byte[] decryptData(byte[] encryptedData, SecureSession session, byte[] associatedData) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, UnsupportedEncodingException, IllegalBlockSizeException, BadPaddingException {
+    if (session != null)
+      return session.open(encryptedData, associatedData);
+
+    return Encryptor.getInstance().encryptDecryptData(Cipher.DECRYPT_MODE, encryptedData, this.ENCRYPTION_KEYS.getPrivate());
+  }
+
+  private byte[] encryptData(byte[] plainData, String receiver, SecureSession session, byte[] associatedData) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, UnsupportedEncodingException, BadPaddingException {
+    if (session != null)
+      return session.seal(plainData, associatedData);
+
+    return Encryptor.getInstance().encryptDecryptData(Cipher.ENCRYPT_MODE, plainData, this.PUBLIC_KEYS.get(receiver));
+  }
+
+  private byte[] handshake(byte[] id, String receiver, SecureSession session) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, UnsupportedEncodingException, BadPaddingException {
+    if (session != null)
+      return session.handshake(id, this.PUBLIC_KEYS.get(receiver));
+
+    return this.encryptData(id, receiver, null, null);
+  }
+
+  /**
+   * Log a request that failed or whose reply could not be handled, nothing else waits on the future.
+   */
+  private void logFailure(Void result, Throwable ex) {
+    if (ex != null)
+      LOG.log(Level.SEVERE, null, ex);
+  }
+
+  private void receiveValidationNum(Datagram datagram) {
+    if (datagram.getType() != Datagram.DATA_TYPE.OTHER) {
+      LOG.log(Level.SEVERE, "Unknown response. {0} cannot handle the response obtained from CLA.", ID);
+
+      return;
+    }
+
+    try {
+      byte[] reply = SecureSession.associatedData(VotingDatagram.ACTION_TYPE.REQUEST_VALIDATION_NUM.toString(), ServerConnectionManager.SERVER_NAME, this.ID);
+      String decryptedData = new String(decryptData(datagram.getData(), this.CLA_SESSION, reply), Datagram.STRING_ENCODING);
+
+      System.out.println("Received encrypted validation number from CLA for " + ID + ":\n" + new String(datagram.getData(), Datagram.STRING_ENCODING));
+      System.out.println(ID + " decrypted validation number: " + decryptedData);
+
+      this.validationNum = Integer.parseInt(decryptedData);
+      this.CLA_CONN.cleanup();
+      this.runTasks(VotingDatagram.ACTION_TYPE.REQUEST_VALIDATION_NUM);
+    } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | IllegalBlockSizeException | BadPaddingException | UnsupportedEncodingException ex) {
+      LOG.log(Level.SEVERE, null, ex);
+    }
   }
 
-  private byte[] encryptData(byte[] plainData, String receiver) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, UnsupportedEncodingException, BadPaddingException {
-    byte[] encryptedKey = KDC.getInstance().getKey(this.ID, receiver);
-    PublicKey key = (PublicKey) Encryptor.getInstance().decryptKey(encryptedKey, this.KDC_COMM_KEY, "RSA", Cipher.PUBLIC_KEY);
-    return Encryptor.getInstance().encryptDecryptData(Cipher.ENCRYPT_MODE, plainData, key);
+  private void receiveVoteReceipt(Datagram datagram) {
+    if (datagram.getType() != Datagram.DATA_TYPE.OTHER) {
+      LOG.log(Level.SEVERE, "Unknown response. {0} cannot handle the response obtained from CTF.", ID);
+
+      return;
+    }
+
+    try {
+      byte[] reply = SecureSession.associatedData(VotingDatagram.ACTION_TYPE.SUBMIT_VOTE.toString(), ServerConnectionManager.SERVER_NAME, this.ID);
+      String decryptedData = new String(decryptData(datagram.getData(), this.CTF_SESSION, reply), Datagram.STRING_ENCODING);
+      this.voteSubmitted = Boolean.parseBoolean(decryptedData);
+
+      if (this.voteSubmitted)
+        this.CTF_CONN.cleanup();
+
+      this.runTasks(VotingDatagram.ACTION_TYPE.SUBMIT_VOTE);
+    } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | IllegalBlockSizeException | BadPaddingException | UnsupportedEncodingException ex) {
+      LOG.log(Level.SEVERE, null, ex);
+    }
+  }
+
+  private void runTasks(VotingDatagram.ACTION_TYPE action) {
+    List<Runnable> tasks = this.TASKS.remove(action);
+
+    if (tasks != null)
+      tasks.forEach(task -> task.run());
   }
 }
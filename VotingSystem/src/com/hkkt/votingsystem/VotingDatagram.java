@@ -24,12 +24,12 @@
 package com.hkkt.votingsystem;
 
 import com.hkkt.communication.Datagram;
-import static com.hkkt.communication.Datagram.STRING_ENCODING;
 import com.hkkt.communication.DatagramMissingSenderReceiverException;
+import com.hkkt.communication.DatagramView;
 import com.hkkt.communication.ServerConnectionManager;
 import java.io.UnsupportedEncodingException;
 import java.time.Instant;
-import java.util.Objects;
+import java.util.HashMap;
 
 /**
  *
@@ -37,45 +37,59 @@ import java.util.Objects;
  */
 public class VotingDatagram extends Datagram {
   public static VotingDatagram fromBytes(byte[] bytes) throws UnsupportedEncodingException, DatagramMissingSenderReceiverException {
-    int pad = ServerConnectionManager.MAX_NAME_LENGTH;
-    String temp = new String(bytes, STRING_ENCODING);
-    String sender;
-    String receiver;
-    ACTION_TYPE otherType;
-    Instant timestamp;
-    byte[] data;
-
-    sender = temp.substring(0, pad).trim();
-    receiver = temp.substring(pad, pad * 2).trim();
-    pad = pad * 2 + MAX_TYPE_LENGTH;
-    otherType = ACTION_TYPE.valueOf(temp.substring(pad, pad + MAX_TYPE_OTHER_LENGTH).trim());
-    pad += MAX_TYPE_OTHER_LENGTH;
-    timestamp = Instant.parse(temp.substring(pad, pad + MAX_TIMESTAMP_LENGTH).trim());
-    pad += MAX_TIMESTAMP_LENGTH;
-    data = temp.substring(pad).getBytes(STRING_ENCODING);
-
-    return new VotingDatagram(otherType, sender, receiver, data, timestamp);
+    return new VotingDatagram(Datagram.fromBytes(bytes));
   }
 
-  public static boolean isVotingSystemDatagram(byte[] bytes) throws UnsupportedEncodingException {
-    int pad = ServerConnectionManager.MAX_NAME_LENGTH * 2 + MAX_TYPE_LENGTH;
-    String temp = new String(bytes, STRING_ENCODING);
-    String actionType = temp.substring(pad, pad + MAX_TYPE_OTHER_LENGTH).trim();
+  /**
+   * Check the action type of a datagram in the fixed width format without decoding it.
+   *
+   * @param bytes encoded datagram
+   * <p>
+   * @return true if the datagram carries one of the voting system actions
+   */
+  public static boolean isVotingSystemDatagram(byte[] bytes) {
+    int start = ServerConnectionManager.MAX_NAME_LENGTH * 2 + MAX_TYPE_LENGTH;
+    int end = start + MAX_TYPE_OTHER_LENGTH;
 
-    return ACTION_TYPE.isValid(actionType);
+    if (bytes == null || bytes.length < end)
+      return false;
+
+    // same as trimming the field
+    while (start < end && (bytes[start] & 0xFF) <= ' ')
+      start++;
+
+    while (end > start && (bytes[end - 1] & 0xFF) <= ' ')
+      end--;
+
+    return ACTION_TYPE.of(bytes, start, end - start) != null;
   }
 
-  public static boolean isVotingSystemDatagram(Datagram datagram) throws UnsupportedEncodingException {
+  public static boolean isVotingSystemDatagram(Datagram datagram) {
     return ACTION_TYPE.isValid(datagram.getTypeOther());
   }
 
+  /**
+   * Check the action type of a received datagram without copying it out of the receive buffer.
+   *
+   * @param datagram view of the datagram
+   * <p>
+   * @return true if the datagram carries one of the voting system actions
+   */
+  public static boolean isVotingSystemDatagram(DatagramView datagram) {
+    return ACTION_TYPE.of(datagram) != null;
+  }
+
   protected final ACTION_TYPE OP_TYPE;
 
-  public VotingDatagram(ACTION_TYPE type, String sender, String receiver, byte[] data, Instant timestamp) throws DatagramMissingSenderReceiverException {
-    super(Datagram.DATA_TYPE.OTHER, type.toString(), sender, receiver, data, timestamp);
+  public VotingDatagram(ACTION_TYPE type, String sender, String receiver, byte[] data, Instant timestamp, long correlationId) throws DatagramMissingSenderReceiverException {
+    super(Datagram.DATA_TYPE.OTHER, type.toString(), sender, receiver, data, timestamp, correlationId);
     this.OP_TYPE = type;
   }
 
+  public VotingDatagram(ACTION_TYPE type, String sender, String receiver, byte[] data, Instant timestamp) throws DatagramMissingSenderReceiverException {
+    this(type, sender, receiver, data, timestamp, Datagram.NO_CORRELATION_ID);
+  }
+
   public VotingDatagram(ACTION_TYPE type, String sender, String receiver, byte[] data) throws DatagramMissingSenderReceiverException {
     this(type, sender, receiver, data, Instant.now());
   }
@@ -84,35 +98,15 @@ public class VotingDatagram extends Datagram {
     this(type, sender, receiver, null, Instant.now());
   }
 
+  /**
+   * Wrap a datagram, the voting datagram keeps the id and correlation id of the wrapped one.
+   *
+   * @param datagram
+   * @throws DatagramMissingSenderReceiverException
+   */
   public VotingDatagram(Datagram datagram) throws DatagramMissingSenderReceiverException {
-    this(ACTION_TYPE.valueOf(datagram.getTypeOther()), datagram.getSender(), datagram.getReceiver(), datagram.getData(), datagram.getTimestamp());
-  }
-
-  @Override
-  public boolean equals(Object o) {
-    boolean equal = false;
-
-    if (o instanceof VotingDatagram) {
-      VotingDatagram v = (VotingDatagram) o;
-
-      equal = this.hashCode() == v.hashCode();
-    }
-
-    return equal;
-  }
-
-  @Override
-  public byte[] getBytes() throws UnsupportedEncodingException {
-    int pad = ServerConnectionManager.MAX_NAME_LENGTH;
-    String temp;
-
-    temp = String.format("%-" + pad + "s%-" + pad + "s", this.SENDER_ID, this.RECEIVER_ID);
-    temp += String.format("%-" + MAX_TYPE_LENGTH + "s", this.TYPE.toString());
-    temp += String.format("%-" + MAX_TYPE_OTHER_LENGTH + "s", this.OP_TYPE.toString());
-    temp += String.format("%-" + MAX_TIMESTAMP_LENGTH + "s", this.TIMESTAMP.toString());
-    temp += String.format("%-" + MAX_DATA_LENGTH + "s", new String(this.DATA, STRING_ENCODING));
-
-    return temp.getBytes(STRING_ENCODING);
+    super(datagram.getId(), datagram.getCorrelationId(), Datagram.DATA_TYPE.OTHER, datagram.getTypeOther(), datagram.getSender(), datagram.getReceiver(), datagram.getData(), datagram.getTimestamp());
+    this.OP_TYPE = ACTION_TYPE.valueOf(datagram.getTypeOther());
   }
 
   public ACTION_TYPE getOperationType() {
@@ -121,7 +115,7 @@ public class VotingDatagram extends Datagram {
 
   public VotingDatagram flip(byte[] data, ACTION_TYPE type) throws DatagramMissingSenderReceiverException {
     byte[] d = data == null ? this.DATA : data;
-    return new VotingDatagram(type, this.RECEIVER_ID, this.SENDER_ID, d);
+    return new VotingDatagram(type, this.RECEIVER_ID, this.SENDER_ID, d, Instant.now(), this.CORRELATION_ID);
   }
 
   @Override
@@ -129,27 +123,71 @@ public class VotingDatagram extends Datagram {
     return this.flip(data, this.OP_TYPE);
   }
 
-  @Override
-  public int hashCode() {
-    int hash = 13;
-    hash = 97 * hash + Objects.hashCode(this.DATA);
-    hash = 97 * hash + Objects.hashCode(this.RECEIVER_ID);
-    hash = 97 * hash + Objects.hashCode(this.SENDER_ID);
-    hash = 97 * hash + Objects.hashCode(this.TIMESTAMP);
-    hash = 97 * hash + Objects.hashCode(this.TYPE);
-    hash = 97 * hash + Objects.hashCode(this.OP_TYPE);
-    return hash;
-  }
-
   public static enum ACTION_TYPE {
     REQUEST_VALIDATION_NUM, SUBMIT_VOTE, SEND_VALIDATION_LIST;
 
+    private static final HashMap<String, ACTION_TYPE> BY_NAME = new HashMap<>();
+    private static final ACTION_TYPE[] VALUES = values();
+
+    static {
+      for (ACTION_TYPE type : VALUES)
+        BY_NAME.put(type.name(), type);
+    }
+
     public static boolean isValid(String action) {
-      try {
-        valueOf(action);
-      } catch (IllegalArgumentException ex) {
+      return of(action) != null;
+    }
+
+    /**
+     * Look up an action by name without throwing for unknown names the way valueOf does.
+     *
+     * @param action action name
+     * <p>
+     * @return action, null if there is no action with the name
+     */
+    public static ACTION_TYPE of(String action) {
+      return action == null ? null : BY_NAME.get(action);
+    }
+
+    /**
+     * Look up the action of a received datagram without materializing its other type.
+     *
+     * @param datagram view of the datagram
+     * <p>
+     * @return action, null if the datagram does not carry a voting system action
+     */
+    public static ACTION_TYPE of(DatagramView datagram) {
+      for (ACTION_TYPE type : VALUES)
+        if (datagram.isTypeOther(type.name()))
+          return type;
+
+      return null;
+    }
+
+    /**
+     * Look up an action by its ISO-8859-1 encoded name.
+     *
+     * @param bytes bytes holding the name
+     * @param offset start of the name
+     * @param length length of the name
+     * <p>
+     * @return action, null if there is no action with the name
+     */
+    public static ACTION_TYPE of(byte[] bytes, int offset, int length) {
+      for (ACTION_TYPE type : VALUES)
+        if (matches(type.name(), bytes, offset, length))
+          return type;
+
+      return null;
+    }
+
+    private static boolean matches(String name, byte[] bytes, int offset, int length) {
+      if (name.length() != length)
         return false;
-      }
+
+      for (int i = 0; i < length; i++)
+        if ((bytes[offset + i] & 0xFF) != name.charAt(i))
+          return false;
 
       return true;
     }
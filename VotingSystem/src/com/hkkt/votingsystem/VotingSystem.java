@@ -28,6 +28,8 @@ import com.hkkt.CentralTabulationFacility.CTF;
 import com.hkkt.communication.ChannelSelectorCannotStartException;
 import com.hkkt.communication.DatagramMissingSenderReceiverException;
 import com.hkkt.communication.TaskHandler;
+import com.hkkt.util.Encryptor;
+import com.hkkt.util.KeyPairPool;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.InetSocketAddress;
@@ -56,13 +58,19 @@ public class VotingSystem {
   private final CLA CLA_FACILITY;
   private final InetSocketAddress CTF_ADDRESS;
   private final CTF CTF_FACILITY;
+  private final Encryptor.ENCRYPTION_MODE ENCRYPTION_MODE;
   private final int MAX_VOTERS;
   private final ArrayList<Voter> VOTERS;
   private final List<Runnable> TASKS;
   private final TaskHandler TASK_HANDLER;
 
   public VotingSystem(int numVoters, ArrayList<String> ballotOptions, InetSocketAddress claAddress, InetSocketAddress ctfAddress) throws ChannelSelectorCannotStartException, IOException, DatagramMissingSenderReceiverException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, UnsupportedEncodingException, BadPaddingException {
+    this(numVoters, ballotOptions, claAddress, ctfAddress, Encryptor.DEFAULT_ENCRYPTION_MODE);
+  }
+
+  public VotingSystem(int numVoters, ArrayList<String> ballotOptions, InetSocketAddress claAddress, InetSocketAddress ctfAddress, Encryptor.ENCRYPTION_MODE mode) throws ChannelSelectorCannotStartException, IOException, DatagramMissingSenderReceiverException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, UnsupportedEncodingException, BadPaddingException {
     this.MAX_VOTERS = numVoters;
+    this.ENCRYPTION_MODE = mode;
 
     this.CLA_FACILITY = new CLA(CLA_NAME, claAddress, numVoters);
     this.CTF_FACILITY = new CTF(CTF_NAME, ctfAddress, numVoters, ballotOptions);
@@ -70,7 +78,7 @@ public class VotingSystem {
     this.CLA_ADDRESS = claAddress;
     this.CTF_ADDRESS = ctfAddress;
 
-    this.CLA_FACILITY.connectToCTF(CTF_NAME, ctfAddress);
+    this.CLA_FACILITY.connectToCTF(CTF_NAME, ctfAddress, mode);
     this.CTF_FACILITY.connectToCLA(CLA_NAME, claAddress);
 
     this.VOTERS = new ArrayList<>();
@@ -90,13 +98,14 @@ public class VotingSystem {
       }
     });
 
-    this.TASK_HANDLER = new TaskHandler();
+    // voters are set up on a pool sized to the cores, the rest wait in the queue
+    this.TASK_HANDLER = new TaskHandler(VotingSystem.class.getSimpleName(), TaskHandler.DEFAULT_THREADS, Math.max(1, numVoters), TaskHandler.REJECTION_POLICY.CALLER_RUNS);
   }
 
   public Future<Voter> addVoter(String name) throws IOException, ChannelSelectorCannotStartException, DatagramMissingSenderReceiverException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, UnsupportedEncodingException, BadPaddingException {
     return this.TASK_HANDLER.startTask(() -> {
       if (this.VOTERS.size() < this.MAX_VOTERS + 1) {
-        Voter voter = new Voter(name, this.CLA_ADDRESS, this.CTF_ADDRESS, CLA_NAME, CTF_NAME);
+        Voter voter = new Voter(name, this.CLA_ADDRESS, this.CTF_ADDRESS, CLA_NAME, CTF_NAME, this.ENCRYPTION_MODE);
         this.VOTERS.add(voter);
 
         return voter;
@@ -149,6 +158,9 @@ public class VotingSystem {
 
     System.out.println("System is starting up...");
 
+    // voter key pairs are generated in the background while the CLA and CTF start
+    Encryptor.getInstance().startKeyPairPool(maxVoters, KeyPairPool.DEFAULT_THREADS, KeyPairPool.EMPTY_POLICY.GENERATE);
+
     VotingSystem system = new VotingSystem(maxVoters, ballotOptions, claAddress, ctfAddress);
 
     System.out.println("System preparing... adding voters to system...");
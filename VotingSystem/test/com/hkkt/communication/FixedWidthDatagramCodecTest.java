@@ -0,0 +1,130 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019 Hassan Khan, Kent Tsuenchy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.hkkt.communication;
+
+import com.hkkt.CentralLegitimizationAgency.CLA;
+import com.hkkt.util.Encryptor;
+import com.hkkt.util.PublicKeyCache;
+import com.hkkt.votingsystem.VotingDatagram;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.time.Instant;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Kent Tsuenchy
+ */
+public class FixedWidthDatagramCodecTest {
+  private static final int TIMEOUT_SECONDS = 10;
+
+  @Test
+  public void testDataLengthIsKept() throws Exception {
+    FixedWidthDatagramCodec codec = new FixedWidthDatagramCodec();
+    byte[] data = {'a', 0, ' ', ' '};
+    Datagram datagram = new Datagram(Datagram.DATA_TYPE.MESSAGE, "sender", "receiver", data);
+    byte[] encoded = codec.encode(datagram);
+    Datagram decoded = codec.decode(encoded);
+
+    assertEquals(FixedWidthDatagramCodec.FRAME_LENGTH, encoded.length);
+    assertEquals(DatagramCodec.FRAME_STATUS.VALID, codec.validate(ByteBuffer.wrap(encoded)));
+    assertArrayEquals(data, decoded.getData());
+    assertEquals("sender", decoded.getSender());
+    assertEquals("receiver", decoded.getReceiver());
+  }
+
+  @Test
+  public void testTimestampIsSentToTheMillisecond() throws Exception {
+    FixedWidthDatagramCodec codec = new FixedWidthDatagramCodec();
+    Instant timestamp = Instant.parse("2019-04-01T12:30:45.123456789Z");
+    Datagram datagram = new Datagram(Datagram.DATA_TYPE.MESSAGE, null, "sender", "receiver", null, timestamp);
+
+    assertEquals(Instant.parse("2019-04-01T12:30:45.123Z"), codec.decode(codec.encode(datagram)).getTimestamp());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testOversizedDataIsRejected() throws Exception {
+    new FixedWidthDatagramCodec().encode(new Datagram(Datagram.DATA_TYPE.MESSAGE, "sender", "receiver", new byte[Datagram.MAX_DATA_LENGTH + 1]));
+  }
+
+  /**
+   * A voter registers with the CLA and asks it for a validation number, with every datagram in between sent in the
+   * fixed width format. The RSA encrypted name, id and validation number only decrypt if their length is kept.
+   */
+  @Test
+  public void testLegitimizationRoundTrip() throws Exception {
+    FixedWidthDatagramCodec codec = new FixedWidthDatagramCodec();
+    InetSocketAddress address = new InetSocketAddress("localhost", freePort());
+    String claName = "CLA-fixed-width";
+    String voterName = "voter-fixed-width";
+    KeyPair keys = Encryptor.getInstance().genKeyPair();
+    SecretKey kdcCommKey;
+    PublicKeyCache publicKeys;
+    BlockingQueue<Datagram> replies = new LinkedBlockingQueue<>();
+    ClientConnectionManager client;
+    Datagram reply;
+    byte[] voterNameBytes = voterName.getBytes(Datagram.STRING_ENCODING);
+    byte[] encryptedName, validationNum;
+
+    // more voters than take part, the CLA would otherwise send its list to a CTF that does not exist
+    new CLA(claName, address, 2, codec);
+
+    kdcCommKey = Encryptor.getInstance().registerWithKDC(voterName, keys.getPublic());
+    publicKeys = new PublicKeyCache(voterName, kdcCommKey);
+    encryptedName = Encryptor.getInstance().encryptDecryptData(Cipher.ENCRYPT_MODE, voterNameBytes, publicKeys.get(claName));
+    client = new ClientConnectionManager(voterName, encryptedName, address, codec);
+
+    try {
+      client.subscribe(new DatagramSubscriber(replies::add));
+      client.whenConnected().get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+      assertTrue(client.offerRequest(VotingDatagram.ACTION_TYPE.REQUEST_VALIDATION_NUM.toString(), null, Encryptor.getInstance().encryptDecryptData(Cipher.ENCRYPT_MODE, voterNameBytes, publicKeys.get(claName))));
+
+      reply = replies.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+      assertNotNull("CLA did not reply", reply);
+      assertEquals(VotingDatagram.ACTION_TYPE.REQUEST_VALIDATION_NUM.toString(), reply.getTypeOther());
+
+      validationNum = Encryptor.getInstance().encryptDecryptData(Cipher.DECRYPT_MODE, reply.getData(), keys.getPrivate());
+
+      assertTrue(Integer.parseInt(new String(validationNum, Datagram.STRING_ENCODING)) >= 0);
+    } finally {
+      client.cleanup();
+    }
+  }
+
+  private static int freePort() throws Exception {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+}